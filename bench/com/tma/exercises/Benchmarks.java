@@ -0,0 +1,296 @@
+package com.tma.exercises;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the replication hot paths. Build them with the pom next to
+ * this directory and run them with the allocation profiler:
+ *
+ *     mvn package
+ *     java -jar target/benchmarks.jar -prof gc
+ *
+ * gc.alloc.rate.norm is the bytes allocated per operation. main does the same,
+ * taking a regular expression selecting the benchmarks to run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Benchmarks {
+    // Edits performed per invocation, so the per-invocation setup and teardown do
+    // not dominate edits taking less than a microsecond.
+    private static final int EDITS = 1000;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : Benchmarks.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+
+    /**
+     * Two events whose clocks have the given number of entries, one having seen
+     * all but the last entry of the other.
+     */
+    @State(Scope.Benchmark)
+    public static class Clocks {
+        @Param({"2", "16", "128", "1024"})
+        int entries;
+
+        MyTextEvent first;
+        MyTextEvent second;
+
+        @Setup
+        public void setup() {
+            int[] indices = new int[entries];
+            int[] earlier = new int[entries];
+            int[] later = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                indices[i] = i;
+                earlier[i] = 100 + i;
+                later[i] = 100 + i + (i == entries - 1 ? 0 : 1);
+            }
+
+            first = new TextInsertEvent(0, "a");
+            first.setClocks(VectorClock.of(indices, earlier, entries));
+            second = new TextInsertEvent(0, "b");
+            second.setClocks(VectorClock.of(indices, later, entries));
+        }
+    }
+
+    @Benchmark
+    public boolean happenedBefore(Clocks clocks) {
+        return clocks.first.happenedBefore(clocks.second);
+    }
+
+    /**
+     * A history of the given length, and an event to merge into it where the
+     * given number of events at the end of the history are concurrent with it
+     * and have to be merged again. The history is restored after each merge,
+     * which takes long enough for JMH to time one at a time.
+     */
+    @State(Scope.Thread)
+    public static class History {
+        @Param({"100", "1000", "10000"})
+        int history;
+
+        @Param({"1", "10", "100"})
+        int concurrent;
+
+        Replica replica;
+        MyTextEvent event;
+        private final Random random = new Random(42);
+        private VectorClock clocks;
+
+        @Setup
+        public void setup() {
+            replica = new Replica();
+
+            // Peer 1 types the history, each event having seen the ones before.
+            TextBuffer text = replica.getText();
+            EventHistory events = replica.getEvents();
+            for (int i = 1; i <= history; i++) {
+                MyTextEvent event = new TextInsertEvent(random.nextInt(text.length() + 1), "x");
+                event.setSourceIndex(1);
+                event.setClocks(VectorClock.EMPTY.with(1, i));
+                event.perform(text);
+                events.add(event);
+            }
+
+            // Peer 2 has only seen the events up to the concurrent ones.
+            clocks = VectorClock.EMPTY.with(1, history - concurrent).with(2, 1);
+        }
+
+        @Setup(Level.Invocation)
+        public void event() {
+            event = new TextInsertEvent(random.nextInt(history - concurrent + 1), "y");
+            event.setSourceIndex(2);
+            event.setClocks(clocks);
+        }
+
+        @TearDown(Level.Invocation)
+        public void restore() {
+            // Take the merge back out, and put the events after it back as they were.
+            TextBuffer text = replica.getText();
+            EventHistory events = replica.getEvents();
+            ArrayDeque<MyTextEvent> after = new ArrayDeque<>();
+            while (true) {
+                MyTextEvent last = events.removeLast();
+                if (!last.isSkipped())
+                    last.undo(text);
+                if (last == event)
+                    break;
+                after.addFirst(last);
+            }
+
+            for (MyTextEvent last : after) {
+                last.setAdjustOffset(0);
+                last.setSkipped(false);
+                last.perform(text);
+                events.add(last);
+            }
+        }
+
+        @TearDown
+        public void close() {
+            replica.close(1000);
+        }
+    }
+
+    @Benchmark
+    public TextChange merge(History history) {
+        return history.replica.merge(history.event);
+    }
+
+    /**
+     * A document of the given length, and edits at random offsets in it that are
+     * undone after each invocation.
+     */
+    @State(Scope.Thread)
+    public static class Document {
+        @Param({"100000", "10000000"})
+        int length;
+
+        Rope text;
+        final MyTextEvent[] inserts = new MyTextEvent[EDITS];
+        final MyTextEvent[] removes = new MyTextEvent[EDITS];
+        private final Random random = new Random(42);
+        // Which of the edits the invocation performed, to be undone.
+        private MyTextEvent[] performed;
+
+        @Setup
+        public void setup() {
+            StringBuilder document = new StringBuilder(length);
+            for (int i = 0; i < length; i++)
+                document.append(random.nextInt(10) == 0 ? '\n' : (char) ('a' + random.nextInt(26)));
+
+            text = new Rope(document.toString());
+        }
+
+        @Setup(Level.Invocation)
+        public void edits() {
+            // Removes stay clear of the end, which moves closer with every one.
+            for (int i = 0; i < EDITS; i++) {
+                inserts[i] = new TextInsertEvent(random.nextInt(length + 1), "typed");
+                removes[i] = new TextRemoveEvent(random.nextInt(length - 5 * EDITS), 5);
+            }
+        }
+
+        MyTextEvent[] perform(MyTextEvent[] edits) {
+            for (MyTextEvent edit : edits)
+                edit.perform(text);
+
+            performed = edits;
+            return edits;
+        }
+
+        @TearDown(Level.Invocation)
+        public void undo() {
+            for (int i = performed.length - 1; i >= 0; i--)
+                performed[i].undo(text);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EDITS)
+    public void insertPerform(Document document, Blackhole blackhole) {
+        document.perform(document.inserts);
+        blackhole.consume(document.text);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EDITS)
+    public void removePerform(Document document, Blackhole blackhole) {
+        document.perform(document.removes);
+        blackhole.consume(document.text);
+    }
+
+    /**
+     * A loopback connection another thread keeps sending events over, so
+     * receiving measures the throughput of both ends.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        @Param({"binary", "legacy"})
+        String codec;
+
+        BlockingPeer sender;
+        BlockingPeer receiver;
+
+        @Setup
+        public void setup() throws IOException {
+            ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            Socket sending = new Socket(server.getInetAddress(), server.getLocalPort());
+            Socket receiving = server.accept();
+            server.close();
+            sender = new BlockingPeer(sending, codec(sending));
+            receiver = new BlockingPeer(receiving, codec(receiving));
+
+            ArrayList<MyTextEvent> events = new ArrayList<>();
+            Random random = new Random(42);
+            for (int i = 0; i < 1024; i++) {
+                MyTextEvent event = i % 3 == 0
+                        ? new TextRemoveEvent(random.nextInt(100000), 1 + random.nextInt(3))
+                        : new TextInsertEvent(random.nextInt(100000), "" + (char) ('a' + random.nextInt(26)));
+                event.setSourceIndex(1 + random.nextInt(4));
+                event.setClocks(VectorClock.EMPTY.with(0, 1000 + i).with(1, 500 + i).with(2, 300).with(3, 20 + i / 10));
+                events.add(event);
+            }
+
+            TaskGroup.startDetached("Benchmark sender", () -> {
+                try {
+                    for (int i = 0; ; i++)
+                        sender.send(events.get(i & 1023));
+                } catch (IOException e) {
+                    // Closed by the teardown
+                }
+            });
+        }
+
+        private MessageCodec codec(Socket socket) throws IOException {
+            return codec.equals("legacy")
+                    ? new ObjectStreamCodec(socket.getInputStream(), socket.getOutputStream())
+                    : new BinaryCodec(socket.getInputStream(), socket.getOutputStream());
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            // Closing the peers would flush to a closed end; the sender stops as its writes fail.
+            receiver.getSocket().close();
+            sender.getSocket().close();
+        }
+    }
+
+    @Benchmark
+    public Object receive(Connection connection) throws IOException {
+        return connection.receiver.receive();
+    }
+}
@@ -0,0 +1,783 @@
+package com.tma.exercises;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a session of several editors in one process, and checks that they all
+ * end up with the same text. Each replica is driven by an EventReplayer, like
+ * in the editor, and they talk over loopback sockets through simulated links
+ * that delay, hold up and drop what is sent. So joining with a snapshot,
+ * resuming, relaying and acknowledging all happen as they would over a network.
+ *
+ * Replica 0 is the server and the others are clients connected to it. Clients
+ * listen for peers like the editor does, so with -Dddist.fanOut=n they become
+ * relays. A client that drops out types on, and resumes the session once it is
+ * back. The server never fails here, so a client that loses it comes back to
+ * it rather than taking over.
+ *
+ * The edits and the delays of the links come from the seed, but the replicas
+ * run on threads of their own in real time, so how they interleave differs
+ * from run to run.
+ *
+ * Usage: Simulator [script]
+ *
+ * Without a script every replica types at random. A script has one edit per line:
+ *   time replica insert offset text
+ *   time replica remove offset length
+ *   time replica disconnect duration
+ * with times in ms. Lines starting with # are ignored. Clients connect at time 0
+ * and can edit once the snapshot from the server has arrived.
+ *
+ * -Dsim.seed=1 -Dsim.replicas=4 sets the seed and the number of replicas.
+ * -Dsim.edits=200 -Dsim.interval=100 set how many random edits each replica
+ * makes and the mean time between them, in ms.
+ * -Dsim.delay=20 -Dsim.jitter=10 set the latency of the links and how much it
+ * varies, in ms. -Dsim.reorder=0.05 is the chance a message is held up for
+ * another -Dsim.holdup=200 ms. -Dsim.disconnects=0.005 is the chance a client
+ * drops out for -Dsim.downtime=500 ms after one of its edits.
+ * -Dsim.timeout=30000 is how long to wait for the replicas to agree after the
+ * last edit, in ms. -Dsim.verbose=true keeps what the sessions print.
+ */
+public class Simulator {
+    private static final long SEED = Long.getLong("sim.seed", 1);
+    private static final int REPLICAS = Integer.getInteger("sim.replicas", 4);
+    private static final int EDITS = Integer.getInteger("sim.edits", 200);
+    private static final int INTERVAL = Integer.getInteger("sim.interval", 100);
+    private static final int DELAY = Integer.getInteger("sim.delay", 20);
+    private static final int JITTER = Integer.getInteger("sim.jitter", 10);
+    private static final double REORDER = Double.parseDouble(System.getProperty("sim.reorder", "0.05"));
+    private static final int HOLDUP = Integer.getInteger("sim.holdup", 200);
+    private static final double DISCONNECTS = Double.parseDouble(System.getProperty("sim.disconnects", "0.005"));
+    private static final int DOWNTIME = Integer.getInteger("sim.downtime", 500);
+    private static final int TIMEOUT = Integer.getInteger("sim.timeout", 30000);
+    // The same as the editor.
+    private static final int ACKNOWLEDGE_INTERVAL = 1000;
+    private static final int CONNECT_ATTEMPTS = 10;
+    private static final int CONNECT_RETRY_DELAY = 200;
+    // How often (ms) to look whether the replicas agree once the edits are done.
+    private static final int CHECK_INTERVAL = 50;
+    // Keep going for this many acknowledgements after the replicas agree, so stable events get folded.
+    private static final int SETTLE_ROUNDS = 3;
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+    // Taken before main silences the sessions, for the simulator's own warnings.
+    private static final PrintStream ERR = System.err;
+
+    /**
+     * Decides how long a message takes over a link. Messages still arrive in
+     * the order they were sent, like over TCP, so one held up holds up the ones
+     * behind it too.
+     */
+    interface Link {
+        long delay(Random random);
+    }
+
+    static class LatencyLink implements Link {
+        private final int delay;
+        private final int jitter;
+        private final double reorder;
+        private final int holdup;
+
+        LatencyLink(int delay, int jitter, double reorder, int holdup) {
+            this.delay = delay;
+            this.jitter = jitter;
+            this.reorder = reorder;
+            this.holdup = holdup;
+        }
+
+        @Override
+        public long delay(Random random) {
+            long delay = this.delay + (jitter > 0 ? random.nextInt(2 * jitter + 1) - jitter : 0);
+            // Held up messages arrive after those sent later over other links.
+            if (random.nextDouble() < reorder)
+                delay += holdup;
+            return Math.max(0, delay);
+        }
+    }
+
+    private static class Frame {
+        // When it arrives, in System.nanoTime().
+        private final long arrival;
+        private final byte[] payload;
+
+        Frame(long arrival, byte[] payload) {
+            this.arrival = arrival;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * A connection between two nodes, passing the frames each way on after the
+     * delay of its link. What is still on its way when either end closes is lost,
+     * and the other end is closed too.
+     */
+    private class Connection {
+        private final Socket a;
+        private final Socket b;
+
+        Connection(Socket a, Socket b) throws IOException {
+            this.a = a;
+            this.b = b;
+            a.setTcpNoDelay(true);
+            b.setTcpNoDelay(true);
+            pipe(a, b);
+            pipe(b, a);
+        }
+
+        private void pipe(Socket from, Socket to) {
+            Link link = newLink();
+            LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+            tasks.start("Link from " + from.getPort(), () -> {
+                long lastArrival = 0;
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(from.getInputStream()));
+                    while (true) {
+                        int length = in.readInt();
+                        if (length < 0 || length > BinaryCodec.MAX_FRAME_LENGTH)
+                            throw new IOException("Bad frame length " + length);
+
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        messages.incrementAndGet();
+                        bytes.addAndGet(4 + length);
+
+                        long delay;
+                        synchronized (delays) {
+                            delay = link.delay(delays);
+                        }
+                        lastArrival = Math.max(lastArrival, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+                        frames.add(new Frame(lastArrival, payload));
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            });
+            tasks.start("Link to " + to.getPort(), () -> {
+                try {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(to.getOutputStream()));
+                    while (true) {
+                        Frame frame = frames.take();
+                        TimeUnit.NANOSECONDS.sleep(frame.arrival - System.nanoTime());
+                        out.writeInt(frame.payload.length);
+                        out.write(frame.payload);
+                        out.flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    close();
+                }
+            });
+        }
+
+        void close() {
+            try {
+                a.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                b.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Stands in front of where a node listens, and connects whoever connects
+     * to it through a link. Nodes give out the end point of their gateway, so
+     * peers redirected to them connect through one too.
+     */
+    private class Gateway {
+        private final ServerSocket serverSocket;
+
+        Gateway(int port) throws IOException {
+            serverSocket = new ServerSocket(0, 20, LOOPBACK);
+            tasks.start("Gateway to " + port, () -> {
+                while (true) {
+                    Socket from;
+                    try {
+                        from = serverSocket.accept();
+                    } catch (IOException e) {
+                        // Closed at the end of the run
+                        return;
+                    }
+
+                    try {
+                        new Connection(from, new Socket(LOOPBACK, port));
+                    } catch (IOException e) {
+                        try {
+                            from.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            });
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        String getEndPoint() {
+            return LOOPBACK.getHostAddress() + ":" + getPort();
+        }
+    }
+
+    /**
+     * Shows the text of a node, like the text area of the editor, and is where
+     * its edits are made. Deltas are applied on the simulator's thread, like on
+     * the EDT, following the same rules as TextAreaView. The text is never
+     * cleared here, so the generation stays 0.
+     */
+    private class View implements TextView {
+        private final Node node;
+        private TextBuffer text = new Rope();
+        private int capturedEdits;
+        private int appliedDelta;
+
+        View(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public void show(Delta delta) {
+            scheduler.execute(() -> apply(delta));
+        }
+
+        private void apply(Delta delta) {
+            if (delta.replacesText()) {
+                // The edits made since the delta was made are dropped by the merge thread.
+                capturedEdits = delta.getMergedEdits();
+            } else if (delta.getMergedEdits() != capturedEdits) {
+                // It has not seen our latest edits, so a new one follows.
+                return;
+            }
+
+            appliedDelta = delta.getId();
+            if (delta.replacesText()) {
+                text = new Rope();
+                text.insert(0, delta.getTextAfter().toString());
+                // The snapshot of the server arrived.
+                node.joined = true;
+            } else if (delta.getChange() != null) {
+                delta.getChange().applyTo(text);
+            }
+            node.engine.deltaApplied(delta.getId(), 0);
+        }
+
+        void edit(MyTextEvent event) {
+            edits++;
+            lastEdit = now();
+            if (event instanceof TextInsertEvent)
+                text.insert(event.getOffset(), ((TextInsertEvent) event).getText());
+            else
+                text.remove(event.getOffset(), ((TextRemoveEvent) event).getLength());
+
+            capturedEdits++;
+            node.engine.localEdit(event, appliedDelta, 0);
+        }
+    }
+
+    private class Node {
+        private final int number;
+        private final Replica replica = new Replica();
+        private final EventReplayer engine;
+        private final View view = new View(this);
+        private Gateway gateway;
+        private volatile BlockingPeer server;
+        // Only touched on the simulator's thread: whether the client has had the
+        // snapshot, and whether it dropped out and is not back yet.
+        private boolean joined;
+        private boolean away;
+        private int editsLeft;
+        // Where the random typing goes.
+        private int caret;
+
+        Node(int number) {
+            this.number = number;
+            engine = new EventReplayer(replica, new EventReplayer.Listener() {
+                @Override
+                public void reconnect(String endPoint) {
+                    BlockingPeer lost = server;
+                    scheduler.execute(() -> lostServer(Node.this, lost));
+                }
+
+                @Override
+                public void setDisconnected() {
+                }
+            });
+            engine.setView(view);
+        }
+
+        boolean isServer() {
+            return number == 0;
+        }
+
+        /**
+         * Sends peers connecting to the client on to its server, unless it
+         * relays for the server, like the editor does.
+         */
+        void listen() throws IOException {
+            ServerSocket serverSocket = new ServerSocket(0, 20, LOOPBACK);
+            gateway = new Gateway(serverSocket.getLocalPort());
+            listening.add(serverSocket);
+            tasks.start("Listen " + number, () -> {
+                while (true) {
+                    BlockingPeer client;
+                    try {
+                        client = new BlockingPeer(serverSocket.accept());
+                    } catch (IOException e) {
+                        return;
+                    }
+
+                    if (engine.isRelaying()) {
+                        engine.acceptPeer(client);
+                        continue;
+                    }
+
+                    try {
+                        BlockingPeer to = server;
+                        client.send(to != null
+                                ? new RedirectPeer(true, to.getIp(), to.getPort())
+                                : new RedirectPeer(true, LOOPBACK.getHostAddress(), server().gateway.getPort()));
+                        // Do not close until it has heard us.
+                        client.receive();
+                    } catch (IOException ignored) {
+                    } finally {
+                        try {
+                            client.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private final Random random;
+    // The links draw from their own, as they do on threads of their own.
+    private final Random delays;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final TaskGroup tasks = new TaskGroup("Simulator");
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<ServerSocket> listening = new ArrayList<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private long start;
+    // Scripted edits not made yet. Only touched on the simulator's thread.
+    private int pendingEdits;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private long edits;
+    private int disconnects;
+    private long lastEdit;
+    private long converged = -1;
+
+    Simulator(long seed, int replicas) {
+        random = new Random(seed);
+        delays = new Random(seed + 1);
+        for (int i = 0; i < replicas; i++)
+            nodes.add(new Node(i));
+    }
+
+    /**
+     * @return The time in ms since the run started.
+     */
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Runs the action on the simulator's thread at the given time since the start.
+     */
+    private void at(long time, Runnable run) {
+        scheduler.schedule(() -> {
+            try {
+                run.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, Math.max(0, time - now()), TimeUnit.MILLISECONDS);
+    }
+
+    private Node server() {
+        return nodes.get(0);
+    }
+
+    private Link newLink() {
+        return new LatencyLink(DELAY, JITTER, REORDER, HOLDUP);
+    }
+
+    /**
+     * Connects the client to the server on a task of its session, following
+     * redirects to relays, like the editor does.
+     *
+     * @param resume Whether to resume the session it lost the server of.
+     */
+    private void connect(Node client, boolean resume) {
+        client.engine.getTasks().start("Connect", () -> {
+            BlockingPeer peer = connectToServer(client, resume);
+            for (int attempt = 1; peer == null && attempt < CONNECT_ATTEMPTS; attempt++) {
+                try {
+                    Thread.sleep(CONNECT_RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                peer = connectToServer(client, resume);
+            }
+
+            if (peer == null) {
+                ERR.println("Replica " + client.number + " could not connect");
+                return;
+            }
+
+            BlockingPeer server = peer;
+            scheduler.execute(() -> {
+                client.server = server;
+                client.engine.setServer(server);
+                client.engine.setListenEndPoint(client.gateway.getEndPoint());
+            });
+        });
+    }
+
+    private BlockingPeer connectToServer(Node client, boolean resume) {
+        try {
+            BlockingPeer peer = new BlockingPeer(new Socket(LOOPBACK, server().gateway.getPort()));
+            RedirectPeer redirectPeer = (RedirectPeer) peer.receive();
+            while (redirectPeer.shouldRedirect()) {
+                // Tell it we heard, so it can close us, and try the one it sent us to.
+                peer.send(null);
+                peer.close();
+                peer = new BlockingPeer(new Socket(redirectPeer.getIpAddress(), redirectPeer.getPort()));
+                redirectPeer = (RedirectPeer) peer.receive();
+            }
+
+            peer.acceptFeatures(redirectPeer.getFeatures(), resume ? client.engine.resumeRequest() : null,
+                    Features.RELAY);
+            return peer;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops the connection of the client to its server, along with what is on
+     * its way, and has it resume the session once it is back.
+     */
+    private void disconnect(Node client, long downtime) {
+        BlockingPeer server = client.server;
+        if (client.away || server == null)
+            return;
+
+        disconnects++;
+        client.away = true;
+        client.server = null;
+        try {
+            server.getSocket().close();
+        } catch (IOException ignored) {
+        }
+        at(now() + downtime, () -> {
+            client.away = false;
+            resume(client);
+        });
+    }
+
+    /**
+     * Called when a client loses its server without dropping out, which is
+     * when the relay it was sent to dropped out. Ignored if it has moved on
+     * from that server already.
+     */
+    private void lostServer(Node client, BlockingPeer lost) {
+        if (!client.away && lost != null && client.server == lost)
+            resume(client);
+    }
+
+    private void resume(Node client) {
+        client.server = null;
+        client.engine.disconnect();
+        connect(client, true);
+    }
+
+    private void randomEdit(Node node) {
+        TextBuffer text = node.view.text;
+        node.caret = Math.min(node.caret, text.length());
+        int choice = random.nextInt(10);
+        if (choice == 0)
+            node.caret = random.nextInt(text.length() + 1);
+
+        if (choice < 2 && node.caret > 0) {
+            // Backspace
+            node.caret--;
+            node.view.edit(new TextRemoveEvent(node.caret, text.getText(node.caret, 1)));
+        } else {
+            String typed = "" + (char) ('a' + random.nextInt(26));
+            node.view.edit(new TextInsertEvent(node.caret, typed));
+            node.caret++;
+        }
+    }
+
+    private void scheduleRandomEdits(Node node) {
+        node.editsLeft = EDITS;
+        at(random.nextInt(2 * INTERVAL + 1), () -> randomEdits(node));
+    }
+
+    private void randomEdits(Node node) {
+        // A client still joining types once it has the snapshot. One that
+        // dropped out types on, and the server gets it when it resumes.
+        if (node.isServer() || node.joined) {
+            randomEdit(node);
+            node.editsLeft--;
+            if (!node.isServer() && random.nextDouble() < DISCONNECTS)
+                disconnect(node, DOWNTIME);
+        }
+
+        if (node.editsLeft > 0)
+            at(now() + 1 + random.nextInt(2 * INTERVAL), () -> randomEdits(node));
+    }
+
+    private void scriptedEdit(String line) {
+        String[] fields = line.trim().split(" ", 5);
+        long time = Long.parseLong(fields[0]);
+        Node node = nodes.get(Integer.parseInt(fields[1]));
+        pendingEdits++;
+        at(time, () -> {
+            pendingEdits--;
+            if (!node.isServer() && !node.joined) {
+                ERR.println("Replica " + node.number + " has not joined at " + now() + ", skipping: " + line);
+                return;
+            }
+
+            TextBuffer text = node.view.text;
+            int offset = Math.min(fields.length > 3 ? Integer.parseInt(fields[3]) : 0, text.length());
+            switch (fields[2]) {
+                case "insert":
+                    node.view.edit(new TextInsertEvent(offset, fields[4]));
+                    break;
+                case "remove":
+                    int removed = Math.min(Integer.parseInt(fields[4]), text.length() - offset);
+                    if (removed > 0)
+                        node.view.edit(new TextRemoveEvent(offset, text.getText(offset, removed)));
+                    break;
+                case "disconnect":
+                    if (node.isServer())
+                        throw new IllegalArgumentException("Only clients can disconnect: " + line);
+                    disconnect(node, Long.parseLong(fields[3]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown edit: " + line);
+            }
+        });
+    }
+
+    /**
+     * @return The text of the replica, read on its merge thread.
+     */
+    private static String replicaText(Node node) {
+        CompletableFuture<String> text = new CompletableFuture<>();
+        node.engine.snapshotText(snapshot -> text.complete(snapshot.toString()));
+        return text.join();
+    }
+
+    /**
+     * @return Whether every client is connected and every replica and view has
+     * the text of the server.
+     */
+    private boolean agree() {
+        String expected = replicaText(server());
+        for (Node node : nodes) {
+            if (!node.isServer() && (node.away || node.server == null || !node.joined))
+                return false;
+            if (!node.view.text.toString().equals(expected) || !replicaText(node).equals(expected))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the edits to be done and the replicas to agree, then lets them
+     * acknowledge for a few rounds before ending the run.
+     */
+    private void check() {
+        boolean editing = pendingEdits > 0;
+        for (Node node : nodes)
+            editing |= node.editsLeft > 0;
+
+        if (!editing && converged < 0 && agree()) {
+            converged = now();
+            at(converged + SETTLE_ROUNDS * ACKNOWLEDGE_INTERVAL, done::countDown);
+            return;
+        }
+
+        if (!editing && now() - lastEdit > TIMEOUT) {
+            done.countDown();
+            return;
+        }
+        at(now() + CHECK_INTERVAL, this::check);
+    }
+
+    void run(List<String> script) throws IOException, InterruptedException {
+        start = System.nanoTime();
+        Node server = server();
+        server.replica.runOnMergeThread(() -> server.replica.setOurIndex(0));
+        server.joined = true;
+        ServerSocket serverSocket = EventReplayer.openServerSocket(LOOPBACK, 0);
+        listening.add(serverSocket);
+        server.engine.serve(serverSocket);
+        server.gateway = new Gateway(serverSocket.getLocalPort());
+
+        for (Node node : nodes) {
+            if (!node.isServer()) {
+                node.listen();
+                connect(node, false);
+            }
+        }
+
+        at(0, () -> {
+            if (script == null) {
+                for (Node node : nodes)
+                    scheduleRandomEdits(node);
+            } else {
+                for (String line : script) {
+                    if (!line.trim().isEmpty() && !line.startsWith("#"))
+                        scriptedEdit(line);
+                }
+            }
+            at(CHECK_INTERVAL, this::check);
+        });
+
+        done.await();
+    }
+
+    /**
+     * @return Roughly the bytes the replica holds on to: two bytes a character of
+     * text and base text, and the events with their clocks and text. Ropes share
+     * what did not change since a snapshot, so this is an upper bound. Called on
+     * its merge thread.
+     */
+    private static long estimateBytes(Replica replica) {
+        long bytes = 2L * (replica.getText().length() + replica.getBaseText().length());
+        for (MyTextEvent event : replica.getEvents()) {
+            bytes += 64 + 8 * event.getClocks().size();
+            if (event instanceof TextInsertEvent)
+                bytes += 2 * ((TextInsertEvent) event).getText().length();
+            else
+                bytes += 2 * ((TextRemoveEvent) event).getLength();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Whether all replicas, and what they show, ended up with the same text.
+     */
+    boolean report(PrintStream out) throws InterruptedException {
+        // What the views show is only touched on the simulator's thread.
+        CompletableFuture<Boolean> reported = new CompletableFuture<>();
+        scheduler.execute(() -> reported.complete(printReport(out)));
+        try {
+            return reported.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private boolean printReport(PrintStream out) {
+        out.println("Edits: " + edits + ", disconnects: " + disconnects);
+        out.printf("Messages: %d, %.2f per edit, %.1f bytes per edit%n",
+                messages.get(), (double) messages.get() / Math.max(1, edits), (double) bytes.get() / Math.max(1, edits));
+        if (converged >= 0)
+            out.println("Converged " + Math.max(0, converged - lastEdit) + " ms after the last edit");
+        else
+            out.println("Did not converge within " + TIMEOUT + " ms after the last edit");
+
+        out.printf("%-8s %10s %8s %8s %12s%n", "Replica", "Characters", "Events", "Clocks", "Est. bytes");
+        String expected = replicaText(server());
+        boolean identical = true;
+        for (Node node : nodes) {
+            Replica replica = node.replica;
+            CompletableFuture<long[]> sizes = new CompletableFuture<>();
+            replica.runOnMergeThread(() -> sizes.complete(new long[]{replica.getText().length(),
+                    replica.getEvents().size(), replica.getClocks().size(), estimateBytes(replica)}));
+            long[] size = sizes.join();
+            out.printf("%-8d %10d %8d %8d %12d%n", node.number, size[0], size[1], size[2], size[3]);
+            if (!replicaText(node).equals(expected)) {
+                out.println("Replica " + node.number + " differs from the server");
+                identical = false;
+            } else if (!node.view.text.toString().equals(expected)) {
+                out.println("Replica " + node.number + " shows other text than it has");
+                identical = false;
+            }
+        }
+
+        out.println(identical ? "All replicas identical" : "Replicas DIVERGED");
+        return identical;
+    }
+
+    /**
+     * Ends the sessions and stops the links.
+     */
+    void close() {
+        for (ServerSocket serverSocket : listening) {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Node node : nodes) {
+            node.engine.close();
+            node.replica.close(1000);
+        }
+        scheduler.shutdownNow();
+        tasks.stop(1000);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (Peer.isLegacyCodec()) {
+            System.err.println("The links pass on BinaryCodec frames, so -D" + Peer.CODEC_PROPERTY + " cannot be legacy");
+            System.exit(2);
+        }
+
+        List<String> script = args.length > 0
+                ? Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8) : null;
+
+        // The sessions trace what they do, and dropped connections print their
+        // stack traces; only the report is of interest here.
+        PrintStream out = System.out;
+        PrintStream nowhere = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        if (!Boolean.getBoolean("sim.verbose")) {
+            System.setOut(nowhere);
+            System.setErr(nowhere);
+        }
+
+        Simulator simulator = new Simulator(SEED, REPLICAS);
+        simulator.run(script);
+
+        out.println("Seed " + SEED + ", " + REPLICAS + " replicas, ran for " + simulator.now() + " ms");
+        boolean identical = simulator.report(out);
+        simulator.close();
+        System.exit(identical ? 0 : 1);
+    }
+}
@@ -0,0 +1,26 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * Acknowledges the events a replica has applied, as a vector clock. Clients send
+ * these to the server when they have no events of their own to piggyback the
+ * acknowledgement on. The server sends the minimum over all peers back out,
+ * telling clients which events everybody has seen.
+ */
+public class Acknowledgement implements Serializable {
+    private VectorClock clocks;
+
+    public Acknowledgement(VectorClock clocks) {
+        this.clocks = clocks;
+    }
+
+    public VectorClock getClocks() {
+        return clocks;
+    }
+
+    @Override
+    public String toString() {
+        return "Acknowledgement: " + clocks;
+    }
+}
@@ -0,0 +1,539 @@
+package com.tma.exercises;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A compact wire format. Every message is a frame of a 4 byte length followed
+ * by a type tag and the fields, with numbers as varints and text as UTF-8.
+ * Removes only carry their length, as the removed text is not needed remotely.
+ * Vector clocks are sent as the difference to the previous clock sent on the
+ * same connection, which is usually one or two entries, so an instance must see
+ * the messages of a connection in the order they go over the wire.
+ *
+ * Once both ends have agreed on {@link Features#COMPRESSION}, large frames are
+ * deflated, each on its own, and sent as a compressed frame wrapping the
+ * original. Small frames gain nothing and are sent as they are.
+ *
+ * A connection carrying several documents wraps the messages of each in a
+ * document frame naming it. The clocks of all documents share the one
+ * connection, so they are still encoded in the order they go over the wire.
+ */
+public class BinaryCodec implements MessageCodec {
+    // Refuse frames larger than this rather than trying to allocate them.
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private static final byte NULL = 0;
+    private static final byte REDIRECT_PEER = 1;
+    private static final byte WELCOME = 2;
+    private static final byte PEER_CHANGE = 3;
+    private static final byte TEXT_INSERT = 4;
+    private static final byte TEXT_REMOVE = 5;
+    private static final byte ACKNOWLEDGEMENT = 6;
+    private static final byte SNAPSHOT = 7;
+    private static final byte SNAPSHOT_CHUNK = 8;
+    private static final byte COMPRESSED = 9;
+    private static final byte FEATURES = 10;
+    private static final byte RESUME = 11;
+    private static final byte RESUMED = 12;
+    private static final byte OPEN_DOCUMENT = 13;
+    private static final byte CLOSE_DOCUMENT = 14;
+    private static final byte DOCUMENT = 15;
+    private static final byte RELAY_CHANGE = 16;
+
+    public static final String COMPRESSION_PROPERTY = "ddist.compression";
+    // Frames smaller than this are not worth deflating.
+    public static final int COMPRESSION_THRESHOLD = Integer.getInteger("ddist.compressionThreshold", 1024);
+
+    // Over every connection. A connection may carry several documents and deflates
+    // whole frames, so these are not counted per document.
+    private static final Metrics.Counter UNCOMPRESSED_BYTES = Metrics.counter("compression.bytesIn");
+    private static final Metrics.Counter COMPRESSED_BYTES = Metrics.counter("compression.bytesOut");
+    private static final Metrics.Histogram COMPRESS_MICROS = Metrics.histogram("compression.micros");
+    private static final Metrics.Histogram DECOMPRESS_MICROS = Metrics.histogram("decompression.micros");
+
+    static {
+        // Compressed size in percent of the original, over all frames deflated.
+        Metrics.gauge("compression.ratioPercent", () -> {
+            long in = UNCOMPRESSED_BYTES.get();
+            return in == 0 ? 100 : COMPRESSED_BYTES.get() * 100 / in;
+        });
+    }
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private VectorClock lastWritten = VectorClock.EMPTY;
+    private VectorClock lastRead = VectorClock.EMPTY;
+    private volatile boolean compressing;
+
+    public BinaryCodec(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    /**
+     * A codec that only encodes and decodes frames, for transports doing their own I/O.
+     */
+    public BinaryCodec() {
+        in = null;
+        out = null;
+    }
+
+    @Override
+    public void write(Object message) throws IOException {
+        byte[] payload = encode(message);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    @Override
+    public Object read() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Bad frame length " + length);
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null)
+            in.close();
+
+        if (out != null)
+            out.close();
+    }
+
+    /**
+     * @return The features this end can offer or accept, see {@link Features}.
+     */
+    @Override
+    public int getFeatures() {
+        int features = Features.RESUME;
+        if (Boolean.getBoolean(COMPRESSION_PROPERTY))
+            features |= Features.COMPRESSION;
+
+        return features;
+    }
+
+    /**
+     * Starts using the given features for the frames written from now on. Frames
+     * read may use them at any time.
+     */
+    @Override
+    public void enableFeatures(int features) {
+        if ((features & Features.COMPRESSION) != 0)
+            compressing = true;
+    }
+
+    /**
+     * @return The type tag and fields of a message, without the length prefix.
+     */
+    public byte[] encode(Object message) throws IOException {
+        byte[] payload = encodeMessage(message);
+        if (!compressing || payload.length < COMPRESSION_THRESHOLD)
+            return payload;
+
+        byte[] compressed = compress(payload);
+        return compressed.length < payload.length ? compressed : payload;
+    }
+
+    private byte[] encodeMessage(Object message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        if (message == null) {
+            out.writeByte(NULL);
+        } else if (message instanceof RedirectPeer) {
+            RedirectPeer redirectPeer = (RedirectPeer) message;
+            out.writeByte(REDIRECT_PEER);
+            out.writeBoolean(redirectPeer.shouldRedirect());
+            writeString(out, redirectPeer.getIpAddress());
+            writeVarInt(out, redirectPeer.getPort());
+            // Decoders from before features stop reading at the port.
+            writeVarInt(out, redirectPeer.getFeatures());
+        } else if (message instanceof Welcome) {
+            Welcome welcome = (Welcome) message;
+            out.writeByte(WELCOME);
+            writeVarInt(out, welcome.getIndex());
+            // Decoders from before sessions stop reading at the index.
+            out.writeLong(welcome.getSession());
+            out.writeBoolean(welcome.isRelayed());
+        } else if (message instanceof PeerChange) {
+            PeerChange peerChange = (PeerChange) message;
+            out.writeByte(PEER_CHANGE);
+            out.writeBoolean(peerChange.isConnected());
+            writeString(out, peerChange.getEndPoint());
+        } else if (message instanceof RelayChange) {
+            RelayChange relayChange = (RelayChange) message;
+            out.writeByte(RELAY_CHANGE);
+            writeString(out, relayChange.getEndPoint());
+            writeVarInt(out, relayChange.getFirstIndex());
+            writeVarInt(out, relayChange.getIndexCount());
+            writeVarInt(out, relayChange.getFanOut());
+        } else if (message instanceof TextInsertEvent) {
+            TextInsertEvent insert = (TextInsertEvent) message;
+            out.writeByte(TEXT_INSERT);
+            writeEvent(out, insert);
+            writeString(out, insert.getText());
+        } else if (message instanceof TextRemoveEvent) {
+            TextRemoveEvent remove = (TextRemoveEvent) message;
+            out.writeByte(TEXT_REMOVE);
+            writeEvent(out, remove);
+            writeVarInt(out, remove.getLength());
+        } else if (message instanceof Acknowledgement) {
+            out.writeByte(ACKNOWLEDGEMENT);
+            writeClocks(out, ((Acknowledgement) message).getClocks());
+        } else if (message instanceof Snapshot) {
+            Snapshot snapshot = (Snapshot) message;
+            out.writeByte(SNAPSHOT);
+            writeClocks(out, snapshot.getClocks());
+            writeVarInt(out, snapshot.getLength());
+        } else if (message instanceof SnapshotChunk) {
+            out.writeByte(SNAPSHOT_CHUNK);
+            writeString(out, ((SnapshotChunk) message).getText());
+        } else if (message instanceof Features) {
+            out.writeByte(FEATURES);
+            writeVarInt(out, ((Features) message).getFeatures());
+        } else if (message instanceof Resume) {
+            Resume resume = (Resume) message;
+            out.writeByte(RESUME);
+            out.writeLong(resume.getSession());
+            writeVarInt(out, resume.getIndex());
+            writeClocks(out, resume.getClocks());
+            writeClocks(out, resume.getBaseClocks());
+        } else if (message instanceof Resumed) {
+            out.writeByte(RESUMED);
+            writeClocks(out, ((Resumed) message).getClocks());
+        } else if (message instanceof OpenDocument) {
+            out.writeByte(OPEN_DOCUMENT);
+            writeString(out, ((OpenDocument) message).getId());
+        } else if (message instanceof CloseDocument) {
+            out.writeByte(CLOSE_DOCUMENT);
+            writeString(out, ((CloseDocument) message).getId());
+        } else if (message instanceof DocumentMessage) {
+            DocumentMessage documentMessage = (DocumentMessage) message;
+            if (documentMessage.getMessage() instanceof DocumentMessage)
+                throw new IOException("Cannot nest document messages");
+
+            out.writeByte(DOCUMENT);
+            writeString(out, documentMessage.getId());
+            out.write(encodeMessage(documentMessage.getMessage()));
+        } else {
+            throw new IOException("Cannot encode " + message.getClass().getName());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public Object decode(ByteBuffer in) throws IOException {
+        try {
+            byte type = in.get();
+            switch (type) {
+                case NULL:
+                    return null;
+                case REDIRECT_PEER: {
+                    boolean redirect = in.get() != 0;
+                    String ipAddress = readString(in);
+                    int port = readVarInt(in);
+                    int features = in.hasRemaining() ? readVarInt(in) : 0;
+                    return new RedirectPeer(redirect, ipAddress, port, features);
+                }
+                case WELCOME: {
+                    int index = readVarInt(in);
+                    long session = in.remaining() >= 8 ? in.getLong() : 0;
+                    return new Welcome(index, session, in.hasRemaining() && in.get() != 0);
+                }
+                case PEER_CHANGE: {
+                    boolean connected = in.get() != 0;
+                    return new PeerChange(connected, readString(in));
+                }
+                case TEXT_INSERT: {
+                    int offset = readVarInt(in);
+                    int sourceIndex = readVarInt(in);
+                    VectorClock clocks = readClocks(in);
+                    return readEvent(new TextInsertEvent(offset, readString(in)), sourceIndex, clocks);
+                }
+                case TEXT_REMOVE: {
+                    int offset = readVarInt(in);
+                    int sourceIndex = readVarInt(in);
+                    VectorClock clocks = readClocks(in);
+                    return readEvent(new TextRemoveEvent(offset, readVarInt(in)), sourceIndex, clocks);
+                }
+                case ACKNOWLEDGEMENT:
+                    return new Acknowledgement(readClocks(in));
+                case SNAPSHOT: {
+                    VectorClock clocks = readClocks(in);
+                    return new Snapshot(clocks, readVarInt(in));
+                }
+                case SNAPSHOT_CHUNK:
+                    return new SnapshotChunk(readString(in));
+                case COMPRESSED:
+                    return decode(decompress(in));
+                case FEATURES:
+                    return new Features(readVarInt(in));
+                case RESUME: {
+                    long session = in.getLong();
+                    int index = readVarInt(in);
+                    VectorClock clocks = readClocks(in);
+                    return new Resume(session, index, clocks, readClocks(in));
+                }
+                case RESUMED:
+                    return new Resumed(readClocks(in));
+                case RELAY_CHANGE: {
+                    String endPoint = readString(in);
+                    int firstIndex = readVarInt(in);
+                    int indexCount = readVarInt(in);
+                    return new RelayChange(endPoint, firstIndex, indexCount, readVarInt(in));
+                }
+                case OPEN_DOCUMENT:
+                    return new OpenDocument(readString(in));
+                case CLOSE_DOCUMENT:
+                    return new CloseDocument(readString(in));
+                case DOCUMENT: {
+                    String id = readString(in);
+                    // The whole frame may be compressed, but not the message within.
+                    byte inner = in.get(in.position());
+                    if (inner == DOCUMENT || inner == COMPRESSED)
+                        throw new IOException("Malformed document frame");
+
+                    return new DocumentMessage(id, decode(in));
+                }
+                default:
+                    throw new IOException("Unknown message type " + type);
+            }
+        } catch (RuntimeException e) {
+            // Buffer underflows and the like mean the frame is broken.
+            throw new IOException("Malformed frame", e);
+        }
+    }
+
+    /**
+     * @return A compressed frame: the type tag, the length of the original
+     * payload and the payload deflated.
+     */
+    private static byte[] compress(byte[] payload) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length / 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(COMPRESSED);
+        writeVarInt(out, payload.length);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] buffer = new byte[Math.min(payload.length, 64 * 1024)];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+        } finally {
+            deflater.end();
+        }
+
+        byte[] compressed = bytes.toByteArray();
+        COMPRESS_MICROS.record((System.nanoTime() - start) / 1000);
+        UNCOMPRESSED_BYTES.add(payload.length);
+        COMPRESSED_BYTES.add(compressed.length);
+        return compressed;
+    }
+
+    private static ByteBuffer decompress(ByteBuffer in) throws IOException {
+        long start = System.nanoTime();
+        int length = readVarInt(in);
+        if (length < 0 || length > MAX_FRAME_LENGTH)
+            throw new IOException("Bad compressed frame length " + length);
+
+        byte[] input = new byte[in.remaining()];
+        in.get(input);
+        byte[] payload = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(payload, inflated, length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += n;
+            }
+
+            if (inflated != length)
+                throw new IOException("Compressed frame inflates to the wrong length");
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed frame", e);
+        } finally {
+            inflater.end();
+        }
+
+        DECOMPRESS_MICROS.record((System.nanoTime() - start) / 1000);
+        ByteBuffer frame = ByteBuffer.wrap(payload);
+        // A compressed frame wrapping another would let a few bytes inflate without end.
+        if (length > 0 && frame.get(0) == COMPRESSED)
+            throw new IOException("Nested compressed frame");
+
+        return frame;
+    }
+
+    private void writeEvent(DataOutputStream out, MyTextEvent event) throws IOException {
+        writeVarInt(out, event.getOffset());
+        writeVarInt(out, event.getSourceIndex());
+        writeClocks(out, event.getClocks());
+    }
+
+    private static MyTextEvent readEvent(MyTextEvent event, int sourceIndex, VectorClock clocks) {
+        event.setSourceIndex(sourceIndex);
+        event.setClocks(clocks);
+        return event;
+    }
+
+    /**
+     * Writes the entries that differ from the last clock written, as the gap to
+     * the previous changed index and the zigzag encoded change of the value.
+     */
+    private void writeClocks(DataOutputStream out, VectorClock clocks) throws IOException {
+        VectorClock last = lastWritten;
+        int[] changedIndices = new int[clocks.size() + last.size()];
+        int[] changes = new int[changedIndices.length];
+        int changed = 0;
+        int i = 0, j = 0;
+        while (i < clocks.size() || j < last.size()) {
+            int index = Math.min(i < clocks.size() ? clocks.indexAt(i) : Integer.MAX_VALUE,
+                    j < last.size() ? last.indexAt(j) : Integer.MAX_VALUE);
+            int value = i < clocks.size() && clocks.indexAt(i) == index ? clocks.valueAt(i++) : 0;
+            int lastValue = j < last.size() && last.indexAt(j) == index ? last.valueAt(j++) : 0;
+            if (value != lastValue) {
+                changedIndices[changed] = index;
+                changes[changed++] = value - lastValue;
+            }
+        }
+
+        writeVarInt(out, changed);
+        int previous = -1;
+        for (int k = 0; k < changed; k++) {
+            writeVarInt(out, changedIndices[k] - previous - 1);
+            writeVarInt(out, (changes[k] << 1) ^ (changes[k] >> 31));
+            previous = changedIndices[k];
+        }
+
+        lastWritten = clocks;
+    }
+
+    private VectorClock readClocks(ByteBuffer in) throws IOException {
+        int changed = readVarInt(in);
+        // Every change takes at least two bytes
+        if (changed < 0 || changed > in.remaining() / 2)
+            throw new EOFException(changed + " clock changes run past the end of the frame");
+
+        VectorClock last = lastRead;
+        int[] indices = new int[last.size() + changed];
+        int[] values = new int[indices.length];
+        int n = 0;
+        int j = 0;
+        int index = -1;
+        for (int k = 0; k < changed; k++) {
+            int gap = readVarInt(in);
+            int zigzag = readVarInt(in);
+            if (gap < 0 || index + gap + 1 < index)
+                throw new IOException("Bad clock index");
+
+            index += gap + 1;
+            int change = (zigzag >>> 1) ^ -(zigzag & 1);
+
+            // Copy the unchanged entries before this one
+            while (j < last.size() && last.indexAt(j) < index) {
+                indices[n] = last.indexAt(j);
+                values[n++] = last.valueAt(j++);
+            }
+
+            int lastValue = 0;
+            if (j < last.size() && last.indexAt(j) == index)
+                lastValue = last.valueAt(j++);
+
+            indices[n] = index;
+            values[n++] = lastValue + change;
+        }
+
+        while (j < last.size()) {
+            indices[n] = last.indexAt(j);
+            values[n++] = last.valueAt(j++);
+        }
+
+        try {
+            lastRead = VectorClock.of(indices, values, n);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad clock", e);
+        }
+
+        return lastRead;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        // Length 0 means null, so everything else is shifted by one.
+        if (s == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readLength(in);
+        if (length == 0)
+            return null;
+
+        byte[] bytes = new byte[length - 1];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readLength(ByteBuffer in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining() + 1)
+            throw new EOFException("Length " + length + " runs past the end of the frame");
+
+        return length;
+    }
+
+    /**
+     * Writes 7 bits at a time, least significant first, with the high bit set on
+     * all but the last byte. Small numbers like offsets and clocks take 1-2 bytes.
+     */
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Varint too long");
+    }
+}
@@ -0,0 +1,144 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
+
+/**
+ * A peer whose messages are read one at a time with {@link #receive()}, which
+ * blocks until one arrives: one on a socket of its own, or a document opened
+ * on a DocumentConnection. Sessions start a reader for these, while peers that
+ * are not one hand their messages to the session as they arrive.
+ */
+public class BlockingPeer extends Peer {
+    private final Socket socket;
+    private final MessageCodec codec;
+    // Live messages are written by a thread of their own, so a peer that does not
+    // keep up only holds up itself.
+    private final LinkedBlockingQueue<Object> outbound = new LinkedBlockingQueue<>(OUTBOUND_CAPACITY);
+    private Thread writer;
+    private boolean closed;
+
+    public BlockingPeer(Socket socket) throws IOException {
+        this(socket, isLegacyCodec()
+                ? new ObjectStreamCodec(socket.getInputStream(), socket.getOutputStream())
+                : new BinaryCodec(socket.getInputStream(), socket.getOutputStream()));
+    }
+
+    protected BlockingPeer(Socket socket, MessageCodec codec) throws IOException {
+        this.socket = socket;
+        this.codec = codec;
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Reads the next message, blocking until it arrives.
+     */
+    public Object receive() throws IOException {
+        return codec.read();
+    }
+
+    @Override
+    protected MessageCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void send(Object obj) throws IOException {
+        synchronized (codec) {
+            codec.write(obj);
+        }
+    }
+
+    @Override
+    public void enqueue(Object obj) throws IOException {
+        synchronized (outbound) {
+            if (closed)
+                throw new IOException("Connection closed");
+        }
+
+        if (!outbound.offer(obj)) {
+            System.out.println("Peer " + getIndex() + " has " + getQueueDepth() + " messages queued, dropping it");
+            // The socket first, as flushing to a peer that does not read would block
+            // the merge thread queuing for it.
+            socket.close();
+            try {
+                close();
+            } catch (IOException ignored) {
+                // Nothing more can be written to it anyway.
+            }
+            throw new IOException("Peer " + getIndex() + " is too slow");
+        }
+    }
+
+    @Override
+    public void startWriter(TaskGroup tasks) {
+        synchronized (outbound) {
+            if (writer == null && !closed)
+                writer = tasks.start("Writer for " + getIp() + ":" + getPort(), this::writeQueued);
+        }
+    }
+
+    private void writeQueued() {
+        try {
+            while (true)
+                send(outbound.take());
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (IOException e) {
+            // The reader notices the closed socket and cleans up.
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    /**
+     * @return How many of the messages waiting to be written match. This looks
+     * at every one of them, so it is for reporting only.
+     */
+    int getQueueDepth(Predicate<Object> counted) {
+        int depth = 0;
+        for (Object message : outbound) {
+            if (counted.test(message))
+                depth++;
+        }
+        return depth;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (outbound) {
+            closed = true;
+            if (writer != null)
+                writer.interrupt();
+        }
+
+        try {
+            codec.close();
+        } finally {
+            socket.close();
+        }
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public String getIp() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return socket.getPort();
+    }
+}
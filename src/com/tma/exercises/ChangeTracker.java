@@ -0,0 +1,76 @@
+package com.tma.exercises;
+
+/**
+ * Wraps a text buffer and keeps track of how much of the start and end of the
+ * text none of the edits made through it have touched, so the net change can be
+ * applied elsewhere without copying the whole text.
+ */
+public class ChangeTracker implements TextBuffer {
+    private final TextBuffer text;
+    private final int originalLength;
+    private int unchangedPrefix;
+    private int unchangedSuffix;
+    private boolean changed;
+
+    public ChangeTracker(TextBuffer text) {
+        this.text = text;
+        this.originalLength = text.length();
+        this.unchangedPrefix = originalLength;
+        this.unchangedSuffix = originalLength;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public String getText(int offset, int length) {
+        return text.getText(offset, length);
+    }
+
+    @Override
+    public void insert(int offset, String inserted) {
+        changed(offset, text.length() - offset);
+        text.insert(offset, inserted);
+    }
+
+    @Override
+    public void remove(int offset, int length) {
+        changed(offset, text.length() - offset - length);
+        text.remove(offset, length);
+    }
+
+    @Override
+    public TextBuffer snapshot() {
+        return text.snapshot();
+    }
+
+    private void changed(int prefix, int suffix) {
+        // Every edit leaves the text before its offset and after its end alone.
+        unchangedPrefix = Math.min(unchangedPrefix, prefix);
+        unchangedSuffix = Math.min(unchangedSuffix, suffix);
+        changed = true;
+    }
+
+    public int getOriginalLength() {
+        return originalLength;
+    }
+
+    /**
+     * @return What to replace in the original text to get the current text, or null if nothing changed.
+     */
+    public TextChange getChange() {
+        if (!changed)
+            return null;
+
+        int removedLength = originalLength - unchangedPrefix - unchangedSuffix;
+        int insertedLength = text.length() - unchangedPrefix - unchangedSuffix;
+        return new TextChange(unchangedPrefix, removedLength, text.getText(unchangedPrefix, insertedLength));
+    }
+}
@@ -0,0 +1,19 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * Sent by either end when it is done with a document, or when the server
+ * cannot open it. The connection stays open for the other documents.
+ */
+public class CloseDocument implements Serializable {
+    private final String id;
+
+    public CloseDocument(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,76 @@
+package com.tma.exercises;
+
+/**
+ * A change of the merged text on its way to a TextView. It only fits the view
+ * if the view has captured no more local edits than had been merged when the
+ * delta was made.
+ */
+public class Delta {
+    private final int generation;
+    private final int id;
+    private final int mergedEdits;
+    private final TextChange change;
+    private final TextBuffer textBefore;
+    private final VectorClock clocksBefore;
+    private final TextBuffer textAfter;
+    private final boolean replacesText;
+
+    public Delta(int generation, int id, int mergedEdits, TextChange change, TextBuffer textBefore,
+                 VectorClock clocksBefore, TextBuffer textAfter, boolean replacesText) {
+        this.generation = generation;
+        this.id = id;
+        this.mergedEdits = mergedEdits;
+        this.change = change;
+        this.textBefore = textBefore;
+        this.clocksBefore = clocksBefore;
+        this.textAfter = textAfter;
+        this.replacesText = replacesText;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return How many local edits were merged when the delta was made.
+     */
+    public int getMergedEdits() {
+        return mergedEdits;
+    }
+
+    /**
+     * @return The change, or null if the text did not change.
+     */
+    public TextChange getChange() {
+        return change;
+    }
+
+    /**
+     * @return What the view shows if it takes the change.
+     */
+    public TextBuffer getTextBefore() {
+        return textBefore;
+    }
+
+    /**
+     * @return What the view has seen if it takes the change.
+     */
+    public VectorClock getClocksBefore() {
+        return clocksBefore;
+    }
+
+    public TextBuffer getTextAfter() {
+        return textAfter;
+    }
+
+    /**
+     * @return Whether the view takes the whole text instead, whatever was edited in the meantime.
+     */
+    public boolean replacesText() {
+        return replacesText;
+    }
+}
@@ -6,13 +6,20 @@ import java.io.*;
 import javax.swing.*;
 import javax.swing.text.*;
 import java.net.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 
-public class DistributedTextEditor extends JFrame {
+/**
+ * The editor is a client of the replication engine, showing the text in a text
+ * area. Hosting a session does not need it, see SessionServer.
+ */
+public class DistributedTextEditor extends JFrame implements EventReplayer.Listener {
 
     private JTextArea area1 = new JTextArea(20, 120);
     private JTextField ipaddress = new JTextField("192.168.87.101");
     private JTextField portNumber = new JTextField("40615");
+    private JTextField documentName = new JTextField("");
 
     private EventReplayer er;
 
@@ -21,9 +28,30 @@ public class DistributedTextEditor extends JFrame {
 
     private String currentFile = "Untitled";
     private boolean changed = false;
+    // Counts key presses, so a save finishing in the background knows if the
+    // text changed while it was being written.
+    private int keyPresses;
+    // Whether the text was opened from a file, so Listen hosts it rather than
+    // starting empty.
+    private boolean opened;
+    // Files being read or written in the background. Quitting waits for a save to
+    // finish, as the file would be cut short. They are not cancelled, an
+    // interrupt would close the file unwritten.
+    private final TaskGroup files = new TaskGroup("Files");
+    private static final int QUIT_TIMEOUT = 30 * 1000;
     private DocumentEventCapturer dec = new DocumentEventCapturer();
+    private Replica replica = new Replica();
+    private TextAreaView view;
     private ServerSocket serverSocket;
-    private Peer server;
+    private BlockingPeer server;
+    // Set when we take over as server, so the loop redirecting peers to the old
+    // one serves them instead. It is woken up by connecting from this port.
+    private volatile boolean promoted;
+    private volatile int wakeUpPort;
+    // A peer taking over as server may not know yet that the server is gone, and
+    // redirect us to it, so resuming tries this many times, this far (ms) apart.
+    private static final int RESUME_ATTEMPTS = 10;
+    private static final int RESUME_RETRY_DELAY = 200;
 
     public DistributedTextEditor() {
         area1.setFont(new Font("Monospaced", Font.PLAIN, 12));
@@ -41,6 +69,8 @@ public class DistributedTextEditor extends JFrame {
 
         content.add(ipaddress, BorderLayout.CENTER);
         content.add(portNumber, BorderLayout.CENTER);
+        documentName.setToolTipText("The document to open on a server hosting several, or empty");
+        content.add(documentName, BorderLayout.CENTER);
 
         JMenuBar JMB = new JMenuBar();
         setJMenuBar(JMB);
@@ -53,6 +83,7 @@ public class DistributedTextEditor extends JFrame {
         file.add(Connect);
         file.add(Disconnect);
         file.addSeparator();
+        file.add(Open);
         file.add(Save);
         file.add(SaveAs);
         file.add(Quit);
@@ -71,11 +102,13 @@ public class DistributedTextEditor extends JFrame {
         setDisconnected();
         setVisible(true);
 
-        er = new EventReplayer(dec, area1, this);
+        er = new EventReplayer(replica, this);
+        view = new TextAreaView(area1, dec, er);
     }
 
     private KeyListener k1 = new KeyAdapter() {
         public void keyPressed(KeyEvent e) {
+            keyPresses++;
             changed = true;
             Save.setEnabled(true);
             SaveAs.setEnabled(true);
@@ -84,7 +117,7 @@ public class DistributedTextEditor extends JFrame {
 
     Action Listen = new AbstractAction("Listen") {
         public void actionPerformed(ActionEvent e) {
-            listen(null, -1, true);
+            listen(null, -1, !opened);
         }
     };
 
@@ -103,26 +136,23 @@ public class DistributedTextEditor extends JFrame {
 
         // Reset events if we are supposed to.
         if (clear) {
-            dec.clear();
+            view.clear();
         }
 
         // Set our index. Server is always 0.
-        dec.setOurIndex(0);
+        replica.runOnMergeThread(() -> replica.setOurIndex(0));
+        // Peers get the text we have as the base text when they join.
+        if (!clear)
+            er.startOver();
 
         System.out.println("I am the server!");
-        new Thread(() -> {
-            while (true) {
-                Peer peer;
-                try {
-                    peer = new Peer(serverSocket.accept());
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                    break;
-                }
-
-                EventQueue.invokeLater(() -> er.addPeer(peer));
-            }
-        }).start();
+        try {
+            er.serve(serverSocket);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            area1.setText("Could not start listening");
+            return;
+        }
 
         changed = false;
         Save.setEnabled(false);
@@ -155,7 +185,7 @@ public class DistributedTextEditor extends JFrame {
                     continue;
 
                 try {
-                    serverSocket = new ServerSocket(port, 20, potentialAddress);
+                    serverSocket = EventReplayer.openServerSocket(potentialAddress, port);
                     // Found one!
                     listeningMessage[0] = "Listening on " + getListenEndPoint();
                     return true;
@@ -165,7 +195,7 @@ public class DistributedTextEditor extends JFrame {
         } else {
             // Use just the IP given by caller.
             try {
-                serverSocket = new ServerSocket(port, 20, address);
+                serverSocket = EventReplayer.openServerSocket(address, port);
                 listeningMessage[0] = "Listening on " + getListenEndPoint();
                 return true;
             } catch (IOException ex) {
@@ -186,81 +216,156 @@ public class DistributedTextEditor extends JFrame {
                 return;
             }
 
-            connect(ipaddress.getText(), port);
+            connect(ipaddress.getText(), port, false);
         }
     };
 
-    private void connect(String ip, int port) {
-        area1.setText("");
+    /**
+     * @param resume Whether to resume the session we lost the server of, keeping
+     *               the text and the events, rather than joining anew.
+     */
+    private void connect(String ip, int port, boolean resume) {
+        if (!resume) {
+            area1.setText("");
+            opened = false;
+        }
+        promoted = false;
 
+        String document = documentName.getText().trim();
         String host = ip + ":" + port;
         setTitle("Connecting to " + host + "...");
 
         System.out.println("I am a client!");
 
-        new Thread(() ->
+        er.getTasks().start("Connect to " + host, () ->
         {
-            server = connectToServer(ip, port);
+            server = connectToServer(ip, port, document, resume);
+            for (int attempt = 1; server == null && resume && attempt < RESUME_ATTEMPTS; attempt++) {
+                try {
+                    Thread.sleep(RESUME_RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                server = connectToServer(ip, port, document, true);
+            }
 
             // Update GUI since we connected.
             EventQueue.invokeLater(() -> {
                 if (server != null) {
                     setTitle("Connected to " + server.getIp() + ":" + server.getPort());
 
-                    changed = false;
-                    Save.setEnabled(false);
-                    SaveAs.setEnabled(false);
-                    // old text is removed.
-                    dec.clear();
+                    if (!resume) {
+                        changed = false;
+                        Save.setEnabled(false);
+                        SaveAs.setEnabled(false);
+                        // old text is removed.
+                        view.clear();
+                    }
                     er.setServer(server);
                 } else {
                     area1.setText("Could not connect!");
                 }
             });
 
-            if (server != null) {
+            // Documents of a server hosting several are not served by clients.
+            if (server != null && document.isEmpty()) {
                 String[] message = new String[1];
                 // Start listening ourselves, so we can redirect new peers to the server.
                 if (startListening(message, null, -1)) {
                     er.setListenEndPoint(getListenEndPoint());
                     EventQueue.invokeLater(() -> setTitle(message[0] + " - " + getTitle()));
+                    redirectPeers(serverSocket, server);
+                }
+            }
+        });
+    }
+
+    /**
+     * Redirects peers connecting to us to the server, until the socket is closed
+     * or we take over as server, and then serves them. While the server has us
+     * relay for it we serve them too.
+     */
+    private void redirectPeers(ServerSocket serverSocket, Peer server) {
+        while (true) {
+            BlockingPeer client;
+            try {
+                client = new BlockingPeer(serverSocket.accept());
+            } catch (IOException ex) {
+                // Server socket closed
+                return;
+            }
 
-                    while (true) {
-                        try (Socket clientSocket = serverSocket.accept();
-                             ObjectOutputStream oos = new ObjectOutputStream(clientSocket.getOutputStream())) {
-
-                            // Connect to the server instead!
-                            oos.writeObject(new RedirectPeer(true, server.getIp(), server.getPort()));
-
-                            // Do not close client socket until he tells us it's ok - otherwise the connection could
-                            // be closed before the client received the redirect message.
-                            try (ObjectInputStream iis = new ObjectInputStream(clientSocket.getInputStream())) {
-                                iis.readObject();
-                            } catch (IOException ex) {
-                                // Client socket closed, continue
-                            }
-
-                        } catch (IOException ex) {
-                            // Server socket closed
-                            break;
-                        } catch (ClassNotFoundException e1) {
-                            e1.printStackTrace();
-                            break;
-                        }
+            if (promoted) {
+                if (client.getPort() == wakeUpPort
+                        && client.getSocket().getInetAddress().equals(serverSocket.getInetAddress())) {
+                    try {
+                        client.close();
+                    } catch (IOException ignored) {
                     }
+                    break;
+                }
+
+                // A peer resuming the session before we were woken up.
+                er.addPeer(client);
+                continue;
+            }
+
+            if (er.isRelaying()) {
+                // The server sends peers to us, so serve them.
+                er.acceptPeer(client);
+                continue;
+            }
+
+            try {
+                // Connect to the server instead!
+                client.send(new RedirectPeer(true, server.getIp(), server.getPort()));
+
+                // Do not close client socket until he tells us it's ok - otherwise the connection could
+                // be closed before the client received the redirect message.
+                client.receive();
+            } catch (IOException ex) {
+                // Client socket closed, continue
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException ex) {
+                    // Already closed
                 }
             }
-        }).start();
+        }
+
+        try {
+            er.serve(serverSocket);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Wakes up the loop redirecting peers, by connecting to it, so it serves them instead.
+     */
+    private void wakeUpRedirectLoop() {
+        try (Socket wakeUp = new Socket()) {
+            wakeUp.bind(null);
+            wakeUpPort = wakeUp.getLocalPort();
+            promoted = true;
+            wakeUp.connect(serverSocket.getLocalSocketAddress());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
     }
 
     private String getListenEndPoint() {
         return serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
     }
 
-    private Peer connectToServer(String ip, int port) {
+    private BlockingPeer connectToServer(String ip, int port, String document, boolean resume) {
+        if (!document.isEmpty())
+            return openDocument(ip, port, document, resume);
+
         try {
             // Connect...
-            Peer peer = new Peer(new Socket(ip, port));
+            BlockingPeer peer = new BlockingPeer(new Socket(ip, port));
 
             // If this guy we connected to is not the server, then we should
             // get redirected to the proper server.
@@ -271,13 +376,36 @@ public class DistributedTextEditor extends JFrame {
                 peer.send(null);
                 peer.close();
                 // Try the new guy instead.
-                peer = new Peer(new Socket(redirectPeer.getIpAddress(), redirectPeer.getPort()));
+                peer = new BlockingPeer(new Socket(redirectPeer.getIpAddress(), redirectPeer.getPort()));
 
                 redirectPeer = (RedirectPeer) peer.receive();
             }
 
+            // We listen, so we can relay for the server.
+            peer.acceptFeatures(redirectPeer.getFeatures(), resume ? er.resumeRequest() : null, Features.RELAY);
+            return peer;
+        } catch (IOException e1) {
+            return null;
+        }
+    }
+
+    private BlockingPeer openDocument(String ip, int port, String document, boolean resume) {
+        DocumentConnection connection;
+        try {
+            connection = DocumentConnection.connect(ip, port);
+        } catch (IOException e1) {
+            return null;
+        }
+
+        try {
+            // The document answers like a server of that document alone.
+            OpenedDocumentPeer peer = connection.open(document);
+            RedirectPeer redirectPeer = (RedirectPeer) peer.receive();
+            peer.acceptFeatures(redirectPeer.getFeatures(), resume ? er.resumeRequest() : null);
             return peer;
         } catch (IOException e1) {
+            // Most likely there is no such document.
+            connection.close();
             return null;
         }
     }
@@ -289,6 +417,16 @@ public class DistributedTextEditor extends JFrame {
     };
 
     private void disconnect() {
+        endSession();
+        view.clear();
+        opened = false;
+    }
+
+    /**
+     * Leaves the session, but keeps the text and the events.
+     */
+    private void endSession() {
+        promoted = false;
         if (serverSocket != null) {
             try {
                 serverSocket.close();
@@ -310,10 +448,17 @@ public class DistributedTextEditor extends JFrame {
         setTitle("Disconnected");
     }
 
+    Action Open = new AbstractAction("Open...") {
+        public void actionPerformed(ActionEvent e) {
+            saveOld(() -> openFile());
+        }
+    };
+
     Action Save = new AbstractAction("Save") {
         public void actionPerformed(ActionEvent e) {
             if (!currentFile.equals("Untitled"))
-                saveFile(currentFile);
+                saveFile(currentFile, () -> {
+                });
             else
                 saveFileAs();
         }
@@ -327,11 +472,19 @@ public class DistributedTextEditor extends JFrame {
 
     Action Quit = new AbstractAction("Quit") {
         public void actionPerformed(ActionEvent e) {
-            saveOld();
-            System.exit(0);
+            saveOld(() -> quit());
         }
     };
 
+    private void quit() {
+        try {
+            if (!files.join(QUIT_TIMEOUT))
+                System.out.println("Quitting while still saving");
+        } catch (InterruptedException ignored) {
+        }
+        System.exit(0);
+    }
+
     ActionMap m = area1.getActionMap();
 
     Action Copy = m.get(DefaultEditorKit.copyAction);
@@ -339,57 +492,103 @@ public class DistributedTextEditor extends JFrame {
 
     private void saveFileAs() {
         if (dialog.showSaveDialog(null) == JFileChooser.APPROVE_OPTION)
-            saveFile(dialog.getSelectedFile().getAbsolutePath());
+            saveFile(dialog.getSelectedFile().getAbsolutePath(), () -> {
+            });
     }
 
-    private void saveOld() {
+    /**
+     * Offers to save the changes, then goes on once they are saved.
+     */
+    private void saveOld(Runnable then) {
         if (changed) {
-            if (JOptionPane.showConfirmDialog(this, "Would you like to save " + currentFile + " ?", "Save", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION)
-                saveFile(currentFile);
+            if (JOptionPane.showConfirmDialog(this, "Would you like to save " + currentFile + " ?", "Save", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                saveFile(currentFile, then);
+                return;
+            }
         }
+        then.run();
+    }
+
+    /**
+     * Saves a snapshot of the text in the background, so editing goes on while
+     * a large file is written. Calls back on the EDT once it is saved.
+     */
+    private void saveFile(String fileName, Runnable then) {
+        int keyPressesAtSave = keyPresses;
+        er.snapshotText(text -> files.start("Save " + fileName, () -> {
+            try {
+                TextFiles.write(text, Paths.get(fileName));
+                EventQueue.invokeLater(() -> {
+                    currentFile = fileName;
+                    if (keyPresses == keyPressesAtSave) {
+                        changed = false;
+                        Save.setEnabled(false);
+                    }
+                    then.run();
+                });
+            } catch (IOException e) {
+                EventQueue.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "Could not save " + fileName + ": " + e.getMessage()));
+            }
+        }));
+    }
+
+    private void openFile() {
+        if (dialog.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+
+        // Read in the background, a large file takes a while.
+        Path path = dialog.getSelectedFile().toPath();
+        files.start("Open " + path, () -> {
+            try {
+                Rope text = TextFiles.read(path);
+                EventQueue.invokeLater(() -> fileOpened(path, text));
+            } catch (IOException e) {
+                EventQueue.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "Could not open " + path + ": " + e.getMessage()));
+            }
+        });
     }
 
-    private void saveFile(String fileName) {
+    private void fileOpened(Path path, Rope text) {
+        // Goes into the text area as one delta rather than as an edit of ours.
         try {
-            FileWriter w = new FileWriter(fileName);
-            area1.write(w);
-            w.close();
-            currentFile = fileName;
-            changed = false;
-            Save.setEnabled(false);
-        } catch (IOException e) {
+            er.load(text);
+        } catch (IllegalStateException e) {
+            JOptionPane.showMessageDialog(this, "Disconnect before opening a file");
+            return;
         }
+
+        opened = true;
+        currentFile = path.toString();
+        changed = false;
+        Save.setEnabled(false);
+        SaveAs.setEnabled(true);
     }
 
     public void reconnect(String endPoint) {
         // If we are supposed to reconnect to ourself, then make us a server
         boolean isUs = serverSocket != null && endPoint.equals(getListenEndPoint());
         if (isUs) {
-            String text = area1.getText();
-
-            // Get old address we were listening on
-            InetAddress address = serverSocket.getInetAddress();
-            int port = serverSocket.getLocalPort();
-            disconnect();
-
-            EventQueue.invokeLater(() -> {
-                // Clear out current events
-                dec.clear();
-                // Set the text to the original. This adds the first original event.
-                area1.setText(text);
-                // Start the server. Make sure we listen on the old address and port!
-                listen(address, port, false);
-            });
+            // Take over as server in place: the text, the events and the clocks stay,
+            // so the others resume the session from us, and the socket they know
+            // us by goes from redirecting to serving.
+            System.out.println("I am the server now!");
+            server = null;
+            er.promote();
+            wakeUpRedirectLoop();
+            EventQueue.invokeLater(() -> setTitle("Listening on " + getListenEndPoint()));
         } else {
-            // Make sure we clean up after old session..
-            disconnect();
+            // Clean up after the old session, but keep what we have to resume it.
+            endSession();
             // Connect to whoever is server now.
             String[] split = endPoint.split(":");
-            connect(split[0], Integer.parseInt(split[1]));
+            connect(split[0], Integer.parseInt(split[1]), true);
         }
     }
 
     public static void main(String[] arg) {
+        Metrics.export();
         new DistributedTextEditor();
     }
 }
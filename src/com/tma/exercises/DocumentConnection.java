@@ -0,0 +1,266 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A connection carrying the sessions of several documents. The messages of
+ * each go in DocumentMessages naming it, and a peer stands for the document
+ * at the other end, so the session of the document talks to it like to any
+ * other peer. A client opens a document with {@link #open(String)}, and the
+ * server adds a DocumentPeer for it to the session of the document.
+ */
+public class DocumentConnection {
+    /**
+     * The documents hosted on the server end.
+     */
+    public interface Host {
+        /**
+         * @return The session of the document, started if it was not yet.
+         * @throws IOException If there is no such document.
+         */
+        EventReplayer open(String id) throws IOException;
+    }
+
+    /**
+     * A document open on the connection, on either end.
+     */
+    interface Document {
+        String getId();
+
+        /**
+         * Called on the reader with a message for the document.
+         */
+        void received(Object message);
+
+        /**
+         * Called when the other end closed the document, or the connection was lost.
+         */
+        void closedByOtherEnd();
+    }
+
+    private final BlockingPeer transport;
+    // Null on the client.
+    private final Host host;
+    private final ConcurrentHashMap<String, Document> documents = new ConcurrentHashMap<>();
+    // Documents being opened on the server, and the messages for them that arrived
+    // meanwhile, in order. Opening one may mean reading it from disk, so it is done
+    // off the reader, which goes on with the other documents.
+    private final HashMap<String, ArrayList<Object>> opening = new HashMap<>();
+    private final TaskGroup tasks;
+    private volatile boolean closed;
+
+    DocumentConnection(BlockingPeer transport, Host host) {
+        this.transport = transport;
+        this.host = host;
+        tasks = new TaskGroup("Connection " + transport.getIp() + ":" + transport.getPort());
+    }
+
+    /**
+     * Connects to a server hosting documents.
+     */
+    public static DocumentConnection connect(String ip, int port) throws IOException {
+        BlockingPeer transport = new BlockingPeer(new Socket(ip, port));
+        RedirectPeer redirectPeer = (RedirectPeer) transport.receive();
+        if (redirectPeer.shouldRedirect() || (redirectPeer.getFeatures() & Features.DOCUMENTS) == 0) {
+            transport.close();
+            throw new IOException(ip + ":" + port + " does not host documents");
+        }
+
+        transport.acceptFeatures(redirectPeer.getFeatures(), null, Features.DOCUMENTS);
+        DocumentConnection connection = new DocumentConnection(transport, null);
+        connection.start();
+        return connection;
+    }
+
+    void start() {
+        transport.startWriter(tasks);
+        tasks.start("Reader", this::readMessages);
+    }
+
+    /**
+     * Opens a document. The peer returned stands for the server of the document:
+     * read its RedirectPeer and hand it to the session, like a peer connected to
+     * a server of that document alone.
+     */
+    public OpenedDocumentPeer open(String id) throws IOException {
+        OpenedDocumentPeer peer = new OpenedDocumentPeer(this, id);
+        if (documents.putIfAbsent(id, peer) != null)
+            throw new IOException("Document " + id + " is already open");
+
+        transport.send(new OpenDocument(id));
+        return peer;
+    }
+
+    private void readMessages() {
+        try {
+            while (true) {
+                Object message = transport.receive();
+                if (message instanceof OpenDocument && host != null) {
+                    openHosted(((OpenDocument) message).getId());
+                    continue;
+                }
+
+                String id = message instanceof DocumentMessage ? ((DocumentMessage) message).getId()
+                        : message instanceof CloseDocument ? ((CloseDocument) message).getId() : null;
+                if (id == null)
+                    continue;
+
+                synchronized (opening) {
+                    ArrayList<Object> held = opening.get(id);
+                    if (held != null) {
+                        held.add(message);
+                        continue;
+                    }
+                }
+                deliver(message);
+            }
+        } catch (IOException e) {
+            System.out.println("Connection to " + transport.getIp() + ":" + transport.getPort() + " lost: " + e);
+        } finally {
+            close();
+        }
+    }
+
+    private void deliver(Object message) {
+        if (message instanceof DocumentMessage) {
+            DocumentMessage documentMessage = (DocumentMessage) message;
+            Document document = documents.get(documentMessage.getId());
+            // Otherwise the document was closed while the message was underway.
+            if (document != null)
+                document.received(documentMessage.getMessage());
+        } else {
+            Document document = documents.remove(((CloseDocument) message).getId());
+            if (document != null)
+                document.closedByOtherEnd();
+        }
+    }
+
+    private void openHosted(String id) {
+        synchronized (opening) {
+            if (documents.containsKey(id) || opening.containsKey(id)) {
+                System.out.println("Document " + id + " is already open on this connection");
+                return;
+            }
+            opening.put(id, new ArrayList<>());
+        }
+
+        tasks.start("Open " + id, () -> opened(id));
+    }
+
+    /**
+     * Opens a document for the other end and adds it to the session, then hands
+     * it what arrived meanwhile.
+     */
+    private void opened(String id) {
+        DocumentPeer peer;
+        try {
+            peer = new DocumentPeer(this, id, host.open(id));
+        } catch (IOException e) {
+            System.out.println("Cannot open document " + id + ": " + e.getMessage());
+            synchronized (opening) {
+                opening.remove(id);
+            }
+            try {
+                transport.enqueue(new CloseDocument(id));
+            } catch (IOException ignored) {
+                // The connection is gone.
+            }
+            return;
+        }
+
+        synchronized (opening) {
+            // Lost meanwhile, after close() closed the documents it knew of.
+            if (closed) {
+                opening.remove(id);
+                return;
+            }
+            // Messages for it are still held, until they are handed on below.
+            documents.put(id, peer);
+        }
+
+        peer.getEngine().addEventDrivenPeer(peer);
+
+        // Hand on what arrived while opening, until nothing more has.
+        while (true) {
+            ArrayList<Object> held;
+            synchronized (opening) {
+                held = opening.get(id);
+                if (held.isEmpty()) {
+                    opening.remove(id);
+                    return;
+                }
+                opening.put(id, new ArrayList<>());
+            }
+
+            for (Object message : held)
+                deliver(message);
+        }
+    }
+
+    void send(String id, Object message) throws IOException {
+        transport.send(new DocumentMessage(id, message));
+    }
+
+    void enqueue(String id, Object message) throws IOException {
+        transport.enqueue(new DocumentMessage(id, message));
+    }
+
+    /**
+     * @return How many messages of the document are waiting to be written,
+     * among those of all documents.
+     */
+    int getQueueDepth(String id) {
+        return transport.getQueueDepth(message ->
+                message instanceof DocumentMessage && ((DocumentMessage) message).getId().equals(id));
+    }
+
+    /**
+     * Forgets a document closed on this end and tells the other end. A client
+     * closes the connection along with its last document.
+     */
+    void closed(Document document) {
+        if (!documents.remove(document.getId(), document))
+            return;
+
+        try {
+            transport.enqueue(new CloseDocument(document.getId()));
+        } catch (IOException ignored) {
+            // The connection is gone, and the document with it.
+        }
+
+        if (host == null && documents.isEmpty())
+            close();
+    }
+
+    BlockingPeer getTransport() {
+        return transport;
+    }
+
+    /**
+     * Closes the connection and every document on it.
+     */
+    public void close() {
+        // Under the lock of opening, so a document opened meanwhile is either
+        // among the documents below or sees that the connection is closed.
+        synchronized (opening) {
+            if (closed)
+                return;
+            closed = true;
+        }
+
+        try {
+            transport.close();
+        } catch (IOException ignored) {
+        }
+
+        for (Document document : documents.values()) {
+            documents.remove(document.getId());
+            document.closedByOtherEnd();
+        }
+        tasks.cancel();
+    }
+}
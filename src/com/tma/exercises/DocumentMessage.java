@@ -0,0 +1,24 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * A message of the session of one document, on a connection carrying several.
+ */
+public class DocumentMessage implements Serializable {
+    private final String id;
+    private final Object message;
+
+    public DocumentMessage(String id, Object message) {
+        this.id = id;
+        this.message = message;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Object getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,108 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+
+/**
+ * The editor at the other end of a DocumentConnection, as far as the session of
+ * one hosted document is concerned. Messages go over the connection, wrapped in
+ * DocumentMessages, and those from the editor are handed to the session as
+ * they arrive, like those from an NioPeer. The editor's end of the document is
+ * an {@link OpenedDocumentPeer}.
+ */
+public class DocumentPeer extends Peer implements DocumentConnection.Document {
+    private final DocumentConnection connection;
+    private final String id;
+    private final EventReplayer engine;
+    private volatile boolean closed;
+
+    DocumentPeer(DocumentConnection connection, String id, EventReplayer engine) {
+        this.connection = connection;
+        this.id = id;
+        this.engine = engine;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    EventReplayer getEngine() {
+        return engine;
+    }
+
+    @Override
+    public void received(Object message) {
+        try {
+            engine.handleMessage(this, message, false);
+        } catch (IOException e) {
+            System.out.println("Document " + id + " from " + getIp() + ":" + getPort() + " failed: " + e);
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    protected MessageCodec getCodec() {
+        return connection.getTransport().getCodec();
+    }
+
+    @Override
+    public void send(Object obj) throws IOException {
+        if (closed)
+            throw new IOException("Document " + id + " closed");
+
+        connection.send(id, obj);
+    }
+
+    @Override
+    public void enqueue(Object obj) throws IOException {
+        if (closed)
+            throw new IOException("Document " + id + " closed");
+
+        connection.enqueue(id, obj);
+    }
+
+    @Override
+    public void startWriter(TaskGroup tasks) {
+        // The connection writes the messages of all its documents.
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return connection.getQueueDepth(id);
+    }
+
+    /**
+     * Closes the document only. The connection stays open for the others.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        connection.closed(this);
+        engine.peerDisconnected(this, false);
+    }
+
+    @Override
+    public void closedByOtherEnd() {
+        if (closed)
+            return;
+
+        closed = true;
+        engine.peerDisconnected(this, false);
+    }
+
+    @Override
+    public String getIp() {
+        return connection.getTransport().getIp();
+    }
+
+    @Override
+    public int getPort() {
+        return connection.getTransport().getPort();
+    }
+}
@@ -0,0 +1,187 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hosts the sessions of many documents behind one server socket. Each
+ * document has a replica and a session of its own, started when it is first
+ * opened, and the replicas share a few merge workers, each document always
+ * merging on the same one. Editors that know about documents open them over a
+ * DocumentConnection, and any other editor joins the default document, as if
+ * it were the only one.
+ */
+public class DocumentServer implements DocumentConnection.Host {
+    // How many merge threads the documents are spread over.
+    public static final String WORKERS_PROPERTY = "ddist.mergeWorkers";
+    public static final String DEFAULT_DOCUMENT = "";
+    private static final int MAX_ID_LENGTH = 255;
+    // How long (ms) closing waits for the tasks, and then for each worker, to finish.
+    private static final int STOP_TIMEOUT = 1000;
+
+    /**
+     * Sets up the session of a document just started, before anybody joins it.
+     */
+    public interface Loader {
+        void load(String id, EventReplayer engine) throws IOException;
+    }
+
+    private final MergeWorker[] workers;
+    private final Loader loader;
+    private final EventReplayer.Listener listener;
+    // Completed once the document is loaded.
+    private final ConcurrentHashMap<String, CompletableFuture<EventReplayer>> documents = new ConcurrentHashMap<>();
+    private final TaskGroup tasks = new TaskGroup("Documents");
+
+    public DocumentServer(Loader loader, EventReplayer.Listener listener) {
+        int count = Integer.getInteger(WORKERS_PROPERTY, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        workers = new MergeWorker[Math.max(1, count)];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new MergeWorker("Merge " + i);
+        this.loader = loader;
+        this.listener = listener;
+    }
+
+    /**
+     * @return The session of the document, started if it was not yet.
+     */
+    @Override
+    public EventReplayer open(String id) throws IOException {
+        if (!isValidId(id))
+            throw new IOException("Invalid document id '" + id + "'");
+
+        // Loading may read the document from disk, so it is not done inside the
+        // map, where it would hold up opening other documents too.
+        CompletableFuture<EventReplayer> opened = new CompletableFuture<>();
+        CompletableFuture<EventReplayer> existing = documents.putIfAbsent(id, opened);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw new IOException("Could not open document '" + id + "'", e.getCause());
+            }
+        }
+
+        String metricsPrefix = id.equals(DEFAULT_DOCUMENT) ? "" : "document." + id + ".";
+        Replica replica = new Replica(workers[Math.floorMod(id.hashCode(), workers.length)], metricsPrefix);
+        EventReplayer engine = new EventReplayer(replica, listener, metricsPrefix);
+        // We are the server of every document.
+        replica.runOnMergeThread(() -> replica.setOurIndex(0));
+        try {
+            loader.load(id, engine);
+        } catch (IOException | RuntimeException e) {
+            // So it can be tried again.
+            documents.remove(id, opened);
+            opened.completeExceptionally(e);
+            throw e;
+        }
+        System.out.println("Opened document '" + id + "'");
+        opened.complete(engine);
+        return engine;
+    }
+
+    /**
+     * Ids name documents, not paths, so a server can keep them as files in one
+     * directory.
+     */
+    public static boolean isValidId(String id) {
+        if (id.length() > MAX_ID_LENGTH || id.startsWith("."))
+            return false;
+
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c == '/' || c == '\\' || c == ':' || Character.isISOControl(c))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Accepts editors on the server socket until it is closed.
+     */
+    public void serve(ServerSocket serverSocket) {
+        tasks.start("Accept", () -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    break;
+                }
+
+                tasks.start("Greet " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort(),
+                        () -> greet(socket));
+            }
+        });
+    }
+
+    /**
+     * Tells the editor we are the server and offers it documents. One that takes
+     * them gets a DocumentConnection, and any other joins the default document.
+     */
+    private void greet(Socket socket) {
+        try {
+            BlockingPeer peer = new BlockingPeer(socket);
+            peer.send(new RedirectPeer(false, null, 0, peer.getFeatures() | Features.DOCUMENTS));
+
+            // Editors from before features never answer, so only wait so long.
+            Object answer = null;
+            socket.setSoTimeout(EventReplayer.FEATURES_TIMEOUT);
+            try {
+                answer = peer.receive();
+                if (answer instanceof Resume) {
+                    peer.resumeRequested((Resume) answer);
+                    answer = peer.receive();
+                }
+            } catch (SocketTimeoutException e) {
+                System.out.println(peer.getIp() + ":" + peer.getPort() + " did not answer the features offered");
+            }
+            socket.setSoTimeout(0);
+
+            int accepted = answer instanceof Features ? ((Features) answer).getFeatures() : 0;
+            if (answer instanceof Features)
+                peer.featuresAccepted(accepted);
+
+            if ((accepted & Features.DOCUMENTS) != 0) {
+                new DocumentConnection(peer, this).start();
+            } else {
+                peer.setGreeted();
+                open(DEFAULT_DOCUMENT).addPeer(peer);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not greet " + socket.getInetAddress().getHostAddress() + ":"
+                    + socket.getPort() + ": " + e);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Ends the sessions of all documents.
+     */
+    public void close() {
+        tasks.cancel();
+        for (CompletableFuture<EventReplayer> opened : documents.values()) {
+            // One still loading has nobody in it yet.
+            EventReplayer engine = opened.getNow(null);
+            if (engine != null)
+                engine.close();
+        }
+
+        // The sessions queue their last tasks on the workers, so those go last.
+        if (!tasks.stop(STOP_TIMEOUT))
+            System.out.println(tasks.getLiveCount() + " document server tasks still running");
+        for (MergeWorker worker : workers) {
+            if (!worker.close(STOP_TIMEOUT))
+                System.out.println("A merge worker is still running");
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.tma.exercises;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * The merged events in merge order, indexed so the merge does not have to look
+ * at every event to transform a new one. Events are grouped by source, where
+ * the events concurrent with a given event are a tail that can be found by
+ * binary search on the source's clock, and removes are indexed by the offset
+ * they were performed at.
+ * <p>
+ * Events can only be added at the end and removed from either end, which is
+ * all the merge and folding of stable events need.
+ */
+public class EventHistory extends AbstractList<MyTextEvent> {
+    private final ArrayList<MyTextEvent> events = new ArrayList<>();
+    private final HashMap<Integer, ArrayList<MyTextEvent>> bySource = new HashMap<>();
+    private final HashMap<Integer, ArrayList<TextRemoveEvent>> removesByOffset = new HashMap<>();
+
+    @Override
+    public MyTextEvent get(int index) {
+        return events.get(index);
+    }
+
+    @Override
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * Adds an event that has been performed, with its final performed offset.
+     */
+    @Override
+    public boolean add(MyTextEvent event) {
+        events.add(event);
+        bySource.computeIfAbsent(event.getSourceIndex(), source -> new ArrayList<>()).add(event);
+        if (event instanceof TextRemoveEvent && !event.isSkipped())
+            removesByOffset.computeIfAbsent(event.getPerformedOffset(), offset -> new ArrayList<>()).add((TextRemoveEvent) event);
+
+        return true;
+    }
+
+    /**
+     * Removes the newest event. Do this before undoing it, as it is indexed by its performed offset.
+     */
+    public MyTextEvent removeLast() {
+        MyTextEvent event = events.remove(events.size() - 1);
+        ArrayList<MyTextEvent> sourceEvents = bySource.get(event.getSourceIndex());
+        sourceEvents.remove(sourceEvents.size() - 1);
+        if (sourceEvents.isEmpty())
+            bySource.remove(event.getSourceIndex());
+
+        unindexRemove(event);
+        return event;
+    }
+
+    /**
+     * Removes the given number of oldest events.
+     */
+    public void removeFirst(int count) {
+        for (int i = 0; i < count; i++) {
+            MyTextEvent event = events.get(i);
+            ArrayList<MyTextEvent> sourceEvents = bySource.get(event.getSourceIndex());
+            // Events of a source are in merge order too, so this is its oldest.
+            sourceEvents.remove(0);
+            if (sourceEvents.isEmpty())
+                bySource.remove(event.getSourceIndex());
+
+            unindexRemove(event);
+        }
+
+        events.subList(0, count).clear();
+    }
+
+    @Override
+    public void clear() {
+        events.clear();
+        bySource.clear();
+        removesByOffset.clear();
+    }
+
+    private void unindexRemove(MyTextEvent event) {
+        if (!(event instanceof TextRemoveEvent) || event.isSkipped())
+            return;
+
+        int offset = event.getPerformedOffset();
+        ArrayList<TextRemoveEvent> removes = removesByOffset.get(offset);
+        removes.remove(event);
+        if (removes.isEmpty())
+            removesByOffset.remove(offset);
+    }
+
+    /**
+     * @return Whether an event in the history that is concurrent with the given
+     * one removed text at the given offset.
+     */
+    public boolean hasConcurrentRemoveAt(int offset, MyTextEvent event) {
+        ArrayList<TextRemoveEvent> removes = removesByOffset.get(offset);
+        if (removes == null)
+            return false;
+
+        for (TextRemoveEvent remove : removes) {
+            if (!seenBy(remove, event))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The events in the history that did not happen before the given
+     * one and were not skipped, in merge order.
+     */
+    public ArrayList<MyTextEvent> concurrentWith(MyTextEvent event) {
+        // The first concurrent event of every source
+        PriorityQueue<int[]> heads = new PriorityQueue<>((a, b) ->
+                MyTextEvent.MERGE_ORDER.compare(bySource.get(a[0]).get(a[1]), bySource.get(b[0]).get(b[1])));
+        for (Integer source : bySource.keySet()) {
+            ArrayList<MyTextEvent> sourceEvents = bySource.get(source);
+            int first = firstNotSeenBy(sourceEvents, source, event);
+            if (first < sourceEvents.size())
+                heads.add(new int[]{source, first});
+        }
+
+        ArrayList<MyTextEvent> concurrent = new ArrayList<>();
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            ArrayList<MyTextEvent> sourceEvents = bySource.get(head[0]);
+            MyTextEvent concurrentEvent = sourceEvents.get(head[1]);
+            if (!concurrentEvent.isSkipped())
+                concurrent.add(concurrentEvent);
+
+            if (++head[1] < sourceEvents.size())
+                heads.add(head);
+        }
+
+        return concurrent;
+    }
+
+    /**
+     * An event of a source happened before another event exactly when the other
+     * has seen the source's clock at that event.
+     */
+    private static boolean seenBy(MyTextEvent sourceEvent, MyTextEvent event) {
+        int source = sourceEvent.getSourceIndex();
+        return sourceEvent.getClocks().get(source) <= event.getClocks().get(source);
+    }
+
+    private static int firstNotSeenBy(ArrayList<MyTextEvent> sourceEvents, int source, MyTextEvent event) {
+        int seen = event.getClocks().get(source);
+        int low = 0;
+        int high = sourceEvents.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sourceEvents.get(middle).getClocks().get(source) <= seen)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+}
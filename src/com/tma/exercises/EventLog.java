@@ -0,0 +1,393 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the events merged into a replica, so a server can get
+ * its document back after a restart. Events go into numbered segment files,
+ * and every so often the base text is written as a checkpoint, after which the
+ * segments holding only events folded into it are deleted. Recovering then
+ * reads the checkpoint and the events after it.
+ *
+ * Events are appended on the merge thread, but written and synced by a thread
+ * of the log every ddist.logSyncInterval ms, so the merge never waits for the
+ * disk. What was appended in the last interval before a crash is lost.
+ *
+ * Each record is the length, a CRC32 and a BinaryCodec frame. A record that
+ * was only partly written when we crashed fails the check and is cut off.
+ */
+public class EventLog {
+    public static final String DIRECTORY_PROPERTY = "ddist.logDirectory";
+    private static final int SYNC_INTERVAL = Integer.getInteger("ddist.logSyncInterval", 100);
+    // Start a new segment once the current one is this large.
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+    // Checkpoint at most every ddist.checkpointInterval ms, and only once this much
+    // was logged since the last one, which bounds the tail read when recovering.
+    private static final long CHECKPOINT_INTERVAL = Long.getLong("ddist.checkpointInterval", 60 * 1000);
+    private static final long CHECKPOINT_BYTES = 1024 * 1024;
+    // How long (ms) closing waits for a sync in progress before syncing itself.
+    private static final long CLOSE_TIMEOUT = 5000;
+    private static final int CHECKPOINT_CHUNK_LENGTH = 64 * 1024;
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static class Segment {
+        private final int number;
+        private final Path path;
+        private FileChannel channel;
+        // Encodes the clocks relative to the previous event in the segment.
+        private final BinaryCodec codec = new BinaryCodec();
+        private long size;
+        // The events in the segment all happened before these clocks.
+        private VectorClock clocks = VectorClock.EMPTY;
+
+        Segment(int number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
+    }
+
+    private static class Checkpoint {
+        private final TextBuffer text;
+        private final VectorClock clocks;
+
+        Checkpoint(TextBuffer text, VectorClock clocks) {
+            this.text = text;
+            this.clocks = clocks;
+        }
+    }
+
+    private final Path directory;
+    // All segments on disk, by number. The last one is appended to.
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    // Records and checkpoints waiting to be written, in order. Each record comes
+    // after the segment it goes into.
+    private ArrayList<Object> pending = new ArrayList<>();
+    // Held while writing, so only one thread writes at a time.
+    private final Object writeLock = new Object();
+    private long bytesSinceCheckpoint;
+    private long lastCheckpoint = System.nanoTime();
+    // The sync thread. It is stopped with closed rather than cancelled, as an
+    // interrupt would close the channel it may be writing.
+    private final TaskGroup tasks = new TaskGroup("Log");
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private TextBuffer recoveredText = new Rope();
+    private VectorClock recoveredClocks = VectorClock.EMPTY;
+    private final ArrayList<MyTextEvent> recoveredEvents = new ArrayList<>();
+
+    /**
+     * Opens the log in the directory, creating it if needed, and reads what is
+     * there, see getRecoveredEvents.
+     */
+    public EventLog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        Path checkpoint = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint))
+            readCheckpoint(checkpoint);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(number, new Segment(number, path));
+            }
+        }
+
+        for (Segment segment : segments.values())
+            readSegment(segment);
+
+        // Never append to a segment written before, its codec state is gone.
+        newSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        System.out.println("Recovered " + recoveredText.length() + " characters and " + recoveredEvents.size()
+                + " events from " + directory);
+
+        tasks.start("Sync " + directory.getFileName(), () -> syncPeriodically());
+    }
+
+    private void readCheckpoint(Path path) throws IOException {
+        BinaryCodec codec = new BinaryCodec();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer in = readFully(channel);
+            Snapshot snapshot = (Snapshot) readRecord(in, codec);
+            Rope text = new Rope();
+            while (text.length() < snapshot.getLength()) {
+                SnapshotChunk chunk = (SnapshotChunk) readRecord(in, codec);
+                if (chunk == null)
+                    throw new IOException("Checkpoint " + path + " is cut short");
+                text.insert(text.length(), chunk.getText());
+            }
+
+            recoveredText = text;
+            recoveredClocks = snapshot.getClocks();
+        }
+    }
+
+    private void readSegment(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer in = readFully(channel);
+            Object record;
+            while ((record = readRecord(in, segment.codec)) != null) {
+                MyTextEvent event = (MyTextEvent) record;
+                segment.clocks = segment.clocks.max(event.getClocks());
+                // Folded into the checkpoint already.
+                if (!event.getClocks().dominatedBy(recoveredClocks))
+                    recoveredEvents.add(event);
+            }
+
+            segment.size = in.position();
+            if (segment.size < channel.size()) {
+                System.out.println("Cutting off " + (channel.size() - segment.size) + " bytes of " + segment.path);
+                channel.truncate(segment.size);
+            }
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel) throws IOException {
+        ByteBuffer in = ByteBuffer.allocate((int) channel.size());
+        while (in.hasRemaining() && channel.read(in) >= 0) {
+        }
+        in.flip();
+        return in;
+    }
+
+    /**
+     * @return The next record, or null at the end or at a record that was not
+     * completely written, leaving in at the start of it.
+     */
+    private static Object readRecord(ByteBuffer in, BinaryCodec codec) throws IOException {
+        int start = in.position();
+        if (in.remaining() < 12)
+            return null;
+
+        int length = in.getInt();
+        long checksum = in.getLong();
+        if (length < 0 || length > in.remaining()) {
+            in.position(start);
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        in.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != checksum) {
+            in.position(start);
+            return null;
+        }
+
+        return codec.decode(ByteBuffer.wrap(payload));
+    }
+
+    private static byte[] record(BinaryCodec codec, Object message) throws IOException {
+        byte[] payload = codec.encode(message);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(12 + payload.length);
+        record.putInt(payload.length).putLong(crc.getValue()).put(payload);
+        return record.array();
+    }
+
+    /**
+     * @return The text of the last checkpoint.
+     */
+    public TextBuffer getRecoveredText() {
+        return recoveredText.snapshot();
+    }
+
+    public VectorClock getRecoveredClocks() {
+        return recoveredClocks;
+    }
+
+    /**
+     * @return The events logged after the last checkpoint, in the order they
+     * were merged.
+     */
+    public List<MyTextEvent> getRecoveredEvents() {
+        return recoveredEvents;
+    }
+
+    private Segment newSegment(int number) throws IOException {
+        Segment segment = new Segment(number, directory.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX));
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    /**
+     * Logs an event merged into the history. Called on the merge thread.
+     */
+    public synchronized void append(MyTextEvent event) {
+        try {
+            Segment segment = segments.lastEntry().getValue();
+            if (segment.size >= SEGMENT_SIZE)
+                segment = newSegment(segment.number + 1);
+
+            byte[] record = record(segment.codec, event);
+            segment.size += record.length;
+            segment.clocks = segment.clocks.max(event.getClocks());
+            bytesSinceCheckpoint += record.length;
+            pending.add(segment);
+            pending.add(record);
+        } catch (IOException e) {
+            System.err.println("Could not log " + event + ": " + e);
+        }
+    }
+
+    /**
+     * Tells the log that events were folded into the base text, which is written
+     * as a checkpoint if it is time for one. Called on the merge thread.
+     */
+    public synchronized void folded(TextBuffer baseText, VectorClock baseClocks) {
+        if (bytesSinceCheckpoint < CHECKPOINT_BYTES
+                || System.nanoTime() - lastCheckpoint < TimeUnit.MILLISECONDS.toNanos(CHECKPOINT_INTERVAL))
+            return;
+
+        checkpoint(baseText, baseClocks);
+    }
+
+    /**
+     * Writes the base text as a checkpoint, e.g. when the document was started
+     * over from a file. Called on the merge thread.
+     */
+    public synchronized void checkpoint(TextBuffer baseText, VectorClock baseClocks) {
+        bytesSinceCheckpoint = 0;
+        lastCheckpoint = System.nanoTime();
+        // The snapshot is immediate, the writing happens on the sync thread.
+        pending.add(new Checkpoint(baseText.snapshot(), baseClocks));
+    }
+
+    private void syncPeriodically() {
+        while (true) {
+            try {
+                if (closed.await(SYNC_INTERVAL, TimeUnit.MILLISECONDS))
+                    return;
+                sync();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Could not write the event log: " + e);
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs what was appended until now.
+     */
+    public void sync() throws IOException {
+        synchronized (writeLock) {
+            ArrayList<Object> batch;
+            synchronized (this) {
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+
+            ArrayList<FileChannel> written = new ArrayList<>();
+            Segment segment = null;
+            for (Object item : batch) {
+                if (item instanceof Segment) {
+                    segment = (Segment) item;
+                    if (!written.contains(segment.channel))
+                        written.add(segment.channel);
+                } else if (item instanceof byte[]) {
+                    ByteBuffer record = ByteBuffer.wrap((byte[]) item);
+                    while (record.hasRemaining())
+                        segment.channel.write(record);
+                } else {
+                    // Everything before the checkpoint has to be on disk first.
+                    for (FileChannel channel : written)
+                        channel.force(false);
+                    written.clear();
+                    writeCheckpoint((Checkpoint) item);
+                }
+            }
+
+            for (FileChannel channel : written)
+                channel.force(false);
+        }
+    }
+
+    private void writeCheckpoint(Checkpoint checkpoint) throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+        BinaryCodec codec = new BinaryCodec();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            TextBuffer text = checkpoint.text;
+            ByteBuffer header = ByteBuffer.wrap(record(codec, new Snapshot(checkpoint.clocks, text.length())));
+            while (header.hasRemaining())
+                channel.write(header);
+            for (int offset = 0; offset < text.length(); offset += CHECKPOINT_CHUNK_LENGTH) {
+                int length = Math.min(CHECKPOINT_CHUNK_LENGTH, text.length() - offset);
+                ByteBuffer record = ByteBuffer.wrap(record(codec, new SnapshotChunk(text.getText(offset, length))));
+                while (record.hasRemaining())
+                    channel.write(record);
+            }
+            channel.force(false);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        // Segments holding only folded events are not needed anymore. The one
+        // appended to is kept, and deleting stops at the first one still needed
+        // so the segments left are the tail of the log.
+        ArrayList<Segment> obsolete = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment == segments.lastEntry().getValue() || !segment.clocks.dominatedBy(checkpoint.clocks))
+                    break;
+                obsolete.add(segment);
+            }
+            for (Segment segment : obsolete)
+                segments.remove(segment.number);
+        }
+
+        for (Segment segment : obsolete) {
+            if (segment.channel != null)
+                segment.channel.close();
+            Files.delete(segment.path);
+        }
+        System.out.println("Checkpointed " + checkpoint.text.length() + " characters, deleted "
+                + obsolete.size() + " log segments");
+    }
+
+    /**
+     * Writes what is left and closes the log.
+     */
+    public void close() throws IOException {
+        closed.countDown();
+        boolean interrupted = false;
+        try {
+            if (!tasks.join(CLOSE_TIMEOUT))
+                System.out.println("Closing " + directory + " while it still syncs");
+        } catch (InterruptedException e) {
+            // Writing with the interrupt set would close the channels unwritten.
+            interrupted = true;
+        }
+
+        try {
+            sync();
+            synchronized (this) {
+                for (Segment segment : segments.values()) {
+                    if (segment.channel != null)
+                        segment.channel.close();
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,352 +1,1338 @@
 package com.tma.exercises;
 
-import javax.swing.*;
-import java.awt.EventQueue;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.OptionalInt;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
- * Takes the event recorded by the DocumentEventCapturer and replays
- * them in a JTextArea. The delay of 1 sec is only to make the individual
- * steps in the reply visible to humans.
+ * The replication engine: keeps a Replica of the document in sync with the
+ * peers of the session, whether we are the server or a client. It needs no
+ * user interface; a TextView can be attached to show the text and edit it.
  *
  * @author Jesper Buus Nielsen
  */
 public class EventReplayer {
 
-    private final DistributedTextEditor editor;
-    private DocumentEventCapturer dec;
-    private JTextArea area;
-    private final ArrayList<Peer> peers = new ArrayList<>();
-    private Thread send;
+    /**
+     * Told about the session, on the threads running it.
+     */
+    public interface Listener {
+        /**
+         * The server is gone, and the peer listening on the given end point takes over.
+         */
+        void reconnect(String endPoint);
+
+        void setDisconnected();
+    }
+
+    // Set to "nio" to serve peers from a single selector thread.
+    public static final String TRANSPORT_PROPERTY = "ddist.transport";
+
+    private final Listener listener;
+    private final Replica replica;
+    private TextView view;
+    // Set when serving peers from a selector rather than a thread per peer.
+    private NioServer nioServer;
+    // Copy on write, so sending can go through the peers without locking out
+    // peers joining or leaving.
+    private final CopyOnWriteArrayList<Peer> peers = new CopyOnWriteArrayList<>();
+    // Held while telling peers about other peers' end points, so a joining peer
+    // does not miss an end point announced while it receives its snapshot.
+    private final Object endPointsLock = new Object();
+    // Peers with at least this many messages waiting to be written are reported as slow.
+    private static final int SLOW_PEER_QUEUE_DEPTH = 100;
+    // Acknowledges on the merge thread while in a session, see startAcknowledging.
+    private MergeWorker.Periodic acknowledging;
+    // Everything running on behalf of the current session, cancelled on disconnect.
+    private final TaskGroup tasks = new TaskGroup("Session");
     private final ArrayList<String> serverPeerEndPoints = new ArrayList<>();
+    // How often (in ms) peers exchange acknowledgements so stable events can be forgotten.
+    private static final int ACKNOWLEDGE_INTERVAL = 1000;
+    // How long (in ms) disconnecting waits for the session's tasks to finish.
+    private static final int STOP_TIMEOUT = 1000;
+    private VectorClock lastAcknowledged = VectorClock.EMPTY;
+    private volatile boolean isClient;
+    // Server always has index 0, so peers are numbered from 1, except that a
+    // client taking over as server keeps its index. Indices are not reused, as
+    // old events may still carry them.
+    private int nextIndex = 1;
+    // Indices from here on are not ours to give out, as we relay for a server
+    // that gave us the ones below. Only touched on the merge thread.
+    private int indexLimit = Integer.MAX_VALUE;
+    // The server, when we are a client.
+    private volatile Peer server;
+    // The end point we listen on, when we are a client.
+    private volatile String listenEndPoint;
+    // Size of the pieces the text is sent to joining peers in.
+    private static final int SNAPSHOT_CHUNK_LENGTH = 64 * 1024;
+
+    // How long (ms) to wait for a joining peer to answer the features we offered.
+    static final int FEATURES_TIMEOUT = 1000;
+    // Identifies the events and clocks of the session, which a client that lost
+    // its server can resume. A new one is made whenever the text starts over.
+    private volatile long session = newSession();
+    // How long (ms) a departed peer holds back folding the events it has not
+    // seen, so it can resume the session.
+    private static final int RESUME_WINDOW = Integer.getInteger("ddist.resumeWindow", 30000);
+    // Departed peers by index. Only touched on the merge thread.
+    private final HashMap<Integer, Departed> departed = new HashMap<>();
+    // Stands for the peers of a lost server among the departed, as we do not know their indices.
+    private static final int FORMER_PEERS = -1;
+
+    // With a fan-out, we serve at most that many peers ourselves and send the rest
+    // on to relays among them, see RelayChange. 0 serves everybody.
+    public static final String FAN_OUT_PROPERTY = "ddist.fanOut";
+    private volatile int fanOut = Integer.getInteger(FAN_OUT_PROPERTY, 0);
+    // How many indices a relay gets at most, for its peers and its own relays.
+    private static final int RELAY_INDICES = 1 << 20;
+    // Set when the server made us a relay for it.
+    private volatile boolean relaying;
+    // Set when our server is a relay. Only the peers of the real server may take
+    // over from it, so we leave ourselves out of the end points.
+    private volatile boolean relayed;
+    // The relays we made by end point, and how many peers we sent each. Only
+    // touched on the merge thread.
+    private final HashMap<String, Integer> relays = new HashMap<>();
+    // The relays we made, told to peers joining later.
+    private final CopyOnWriteArrayList<RelayChange> relayChanges = new CopyOnWriteArrayList<>();
+    // Above every index given out in the session that we know of, so we give out
+    // none of them should we take over. Only touched on the merge thread.
+    private int indexCeiling;
+
+    // Named after metricsPrefix, so each session hosted counts its own.
+    private final Metrics.Counter sent;
+    private final Metrics.Counter received;
+    private final Metrics.Counter reconnects;
+    private final Metrics.Counter resumes;
+    private final Metrics.Counter promotions;
+    private final Metrics.Counter duplicates;
+    private final Metrics.Counter redirects;
+    // Removed when the session is closed, as it keeps the replica reachable.
+    private final LongSupplier historyLength;
+
+    // Merges are made on the merge thread and handed to the view as deltas.
+    // A delta only fits the view if no local edit was made since it was
+    // computed, so the view counts the edits it captured and the merge thread
+    // the edits it has merged, and a delta is only applied if they agree. Otherwise
+    // the merge thread sends a new delta once it gets the local edits.
+    // Only touched on the merge thread:
+    private int mergeGeneration;
+    private int mergedEdits;
+    private int lastDelta;
+    // Edits made before the view got this delta are dropped, as it replaces the text.
+    private int replacedAt;
+    // Deltas sent to the view that it may not have applied yet, oldest first.
+    private final ArrayDeque<Delta> unconfirmed = new ArrayDeque<>();
+    // Put in front of the names of the metrics of this session, as a server may host several.
+    private final String metricsPrefix;
+
+    public EventReplayer(Replica replica, Listener listener) {
+        this(replica, listener, "");
+    }
+
+    public EventReplayer(Replica replica, Listener listener, String metricsPrefix) {
+        this.replica = replica;
+        this.listener = listener;
+        this.metricsPrefix = metricsPrefix;
+        sent = Metrics.counter(metricsPrefix + "events.sent");
+        received = Metrics.counter(metricsPrefix + "events.received");
+        reconnects = Metrics.counter(metricsPrefix + "session.reconnects");
+        resumes = Metrics.counter(metricsPrefix + "session.resumes");
+        promotions = Metrics.counter(metricsPrefix + "session.promotions");
+        duplicates = Metrics.counter(metricsPrefix + "events.duplicates");
+        redirects = Metrics.counter(metricsPrefix + "relay.redirects");
+        // Only read for reporting, so a stale size is fine.
+        historyLength = () -> replica.getEvents().size();
+        Metrics.gauge(metricsPrefix + "history.length", historyLength);
+        // Sending only queues the messages for each peer, so the merge thread does
+        // it after each task, and hosting a document costs no thread of its own.
+        replica.setSender(this::sendToPeers);
+    }
+
+    /**
+     * Starts exchanging acknowledgements, unless we do already. Called as the
+     * session gets its first peer, and stopped when it ends.
+     */
+    private synchronized void startAcknowledging() {
+        if (acknowledging == null)
+            acknowledging = replica.runPeriodically(ACKNOWLEDGE_INTERVAL, this::acknowledge);
+    }
+
+    private synchronized void stopAcknowledging() {
+        if (acknowledging != null) {
+            acknowledging.cancel();
+            acknowledging = null;
+        }
+    }
+
+    /**
+     * Rebuilds the document from what the log recovered, then keeps logging to
+     * it. Called before serving.
+     */
+    public void recover(EventLog log) {
+        replica.runOnMergeThread(() -> {
+            replica.setBase(log.getRecoveredText(), log.getRecoveredClocks());
+            // Logged in the order they were merged, so each comes after what it has seen.
+            for (MyTextEvent event : log.getRecoveredEvents()) {
+                replica.clocksReceived(event.getClocks());
+                replica.merge(event);
+            }
+            // Peers join a restarted server from its snapshot, so nothing they do can be
+            // concurrent with what we recovered.
+            replica.foldStableEvents(replica.getClocks());
+            replica.setLog(log);
+            session = newSession();
 
-    public EventReplayer(DocumentEventCapturer dec, JTextArea area, DistributedTextEditor editor) {
-        this.dec = dec;
-        this.area = area;
-        this.editor = editor;
-        send = new Thread(() -> sendToPeers());
-        send.start();
+            // Indices in the recovered clocks may still be carried by events.
+            VectorClock clocks = replica.getClocks();
+            for (int i = 0; i < clocks.size(); i++)
+                nextIndex = Math.max(nextIndex, clocks.indexAt(i) + 1);
+        });
+    }
+
+    /**
+     * Starts the document over from the given text. It becomes the base text,
+     * which peers get in chunks when they join. Peers already connected would
+     * keep the old text, so there must be none.
+     */
+    public void load(TextBuffer text) {
+        if (!peers.isEmpty())
+            throw new IllegalStateException("Cannot load a text while peers are connected");
+
+        replica.runOnMergeThread(() -> startOver(text));
+    }
+
+    /**
+     * Starts the document over from the text it has now, so peers join with all
+     * of it as the base text. Called before serving.
+     */
+    public void startOver() {
+        replica.runOnMergeThread(() -> startOver(replica.getText().snapshot()));
     }
 
-    private void acceptFromPeer(Peer peer, boolean isClient) {
+    private void startOver(TextBuffer text) {
+        replica.flush();
+        VectorClock clocksBefore = replica.getClocks();
+        TextBuffer textBefore = replica.getText().snapshot();
+
+        // Everything until now is replaced, so it all goes into the base.
+        replica.setBase(text, replica.getClocks());
+        session = newSession();
+        replacedAt = sendDelta(null, textBefore, clocksBefore, true);
+    }
+
+    /**
+     * Calls back with a snapshot of the text, taken on the merge thread once the
+     * edits captured so far are merged. The snapshot does not change with later
+     * edits, so it can be used on any thread.
+     */
+    public void snapshotText(Consumer<TextBuffer> then) {
+        replica.runOnMergeThread(() -> {
+            replica.flush();
+            then.accept(replica.getText().snapshot());
+        });
+    }
+
+    /**
+     * Attaches the view to show the text in. Should be called before the session starts.
+     */
+    public void setView(TextView view) {
+        this.view = view;
+    }
+
+    private void acceptFromPeer(BlockingPeer peer, boolean isClient) {
         try {
             // If we aren't the server then wait for the initial welcome from the server.
             // This contains our index in the vector clocks array.
             if (isClient) {
                 Welcome welcome = (Welcome) peer.receive();
                 System.out.println("Received welcome! My index is " + welcome.getIndex());
-                EventQueue.invokeLater(() -> {
-                    dec.setOurIndex(welcome.getIndex());
-                });
-            }
-
-            while (true) {
-                Object message = peer.receive();
-                if (message instanceof PeerChange) {
-                    PeerChange peerChange = (PeerChange) message;
-                    if (isClient) {
-                        // Received updated information about a peer and we are a client. This means another peer has
-                        // connected or disconnected, so update our view of other peers.
-                        if (peerChange.isConnected()) {
-                            serverPeerEndPoints.add(peerChange.getEndPoint());
-                            System.out.println("Added peer end point '" + peerChange.getEndPoint() + "'");
-                        } else {
-                            boolean removed = serverPeerEndPoints.remove(peerChange.getEndPoint());
-                            System.out.println("Removed peer '" + peerChange.getEndPoint() + "': " + removed);
-                        }
-                    } else {
-                        // Otherwise we assume this is the IP the peer we received the message from is listening on.
-                        assert peerChange.isConnected();
-                        System.out.println("Client '" + peer.getIp() + ":" + peer.getPort() + "' is listening on '" + peerChange.getEndPoint() + "'");
-                        peer.setListenEndPoint(peerChange.getEndPoint());
-
-                        // Send this out to all other peers.
-                        synchronized (peers) {
-                            for (Peer otherPeer : peers) {
-                                if (otherPeer != peer)
-                                    otherPeer.send(peerChange);
-                            }
-                        }
+                if (welcome.isRelayed()) {
+                    synchronized (endPointsLock) {
+                        relayed = true;
+                        serverPeerEndPoints.remove(listenEndPoint);
                     }
-                } else {
-                    MyTextEvent event = (MyTextEvent) message;
-                    EventQueue.invokeLater(() -> {
-                        System.out.println("Receive: " + event);
-                        // Make sure later events are timestamped correctly according
-                        // to this received one..
-                        dec.clocksReceived(event.getClocks());
-
-                        // If we're the server then send this event out to all
-                        // other peers
-                        if (!isClient) {
-                            try {
-                                dec.eventHistory.put(event);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                        }
+                }
 
-                        // Do not capture received events again
-                        dec.setEnabled(false);
-                        try {
-                            performEvent(event);
-                        } catch (Exception e) {
-                            System.err.println(e);
-                            // We catch all exceptions, as an uncaught exception would make the
-                            // EDT unwind, which is not healthy.
-                        } finally {
-                            dec.setEnabled(true);
-                        }
+                Object next = peer.receive();
+                // When resuming we keep what we have, and get what we lack as events.
+                if (next instanceof Resumed)
+                    resendUnseen(peer, ((Resumed) next).getClocks());
+                else
+                    receiveSnapshot(peer, welcome, (Snapshot) next);
 
-                        System.out.println("");
-                    });
-                }
+                // Send what was held back meanwhile.
+                peer.endJoin();
             }
+
+            while (true)
+                handleMessage(peer, peer.receive(), isClient);
         } catch (IOException ex) {
             ex.printStackTrace();
+            peerDisconnected(peer, isClient);
+        } catch (InterruptedException e) {
+            // The session is over
+        }
+    }
 
-            try {
-                peer.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Starts over from the snapshot the server sends a joining client.
+     */
+    private void receiveSnapshot(BlockingPeer peer, Welcome welcome, Snapshot snapshot) throws IOException {
+        // The text of the events the server has already forgotten, in chunks.
+        Rope text = new Rope();
+        while (text.length() < snapshot.getLength()) {
+            SnapshotChunk chunk = (SnapshotChunk) peer.receive();
+            text.insert(text.length(), chunk.getText());
+        }
+
+        System.out.println("Received snapshot of " + text.length() + " characters");
+        replica.runOnMergeThread(() -> {
+            replica.flush();
+            VectorClock clocksBefore = replica.getClocks();
+            TextBuffer textBefore = replica.getText().snapshot();
+
+            replica.setOurIndex(welcome.getIndex());
+            replica.setBase(text, snapshot.getClocks());
+            session = welcome.getSession();
+            // Whatever was typed before the snapshot arrived is gone, and so
+            // is what was queued for sending.
+            replacedAt = sendDelta(null, textBefore, clocksBefore, true);
+            replica.eventHistory.add(new Join(peer));
+        });
+    }
+
+    /**
+     * Sends the server the events it lacks after resuming the session, in the
+     * order we merged them. What was queued for sending meanwhile is among them,
+     * and what is queued after is held back until they are sent.
+     */
+    private void resendUnseen(Peer server, VectorClock serverClocks) throws IOException {
+        CompletableFuture<ArrayList<MyTextEvent>> unseen = new CompletableFuture<>();
+        replica.runOnMergeThread(() -> {
+            replica.flush();
+            ArrayList<MyTextEvent> events = new ArrayList<>();
+            for (MyTextEvent event : replica.getEvents()) {
+                if (!seen(event, serverClocks))
+                    events.add(event);
             }
 
+            replica.eventHistory.add(new Join(server));
+            // The server only knows we have seen its base, so tell it what we have.
+            lastAcknowledged = VectorClock.EMPTY;
+            unseen.complete(events);
+        });
+
+        ArrayList<MyTextEvent> events = unseen.join();
+        for (MyTextEvent event : events)
+            server.send(event);
+
+        System.out.println("Resumed the session, sent " + events.size() + " events the server lacked");
+    }
+
+    /**
+     * @return Where to resume the session from if the server is lost, see Resume.
+     */
+    public Resume resumeRequest() {
+        CompletableFuture<Resume> request = new CompletableFuture<>();
+        replica.runOnMergeThread(() -> {
+            replica.flush();
+            request.complete(new Resume(session, replica.getOurIndex(), replica.getClocks(), replica.getBaseClocks()));
+        });
+        return request.join();
+    }
+
+    /**
+     * @return Whether the given clocks have seen the event. A peer gets the
+     * events of a source in order, so it has if it has the event's clock of the source.
+     */
+    private static boolean seen(MyTextEvent event, VectorClock clocks) {
+        int source = event.getSourceIndex();
+        return event.getClocks().get(source) <= clocks.get(source);
+    }
+
+    private static long newSession() {
+        long session;
+        do {
+            session = ThreadLocalRandom.current().nextLong();
+        } while (session == 0);
+        return session;
+    }
+
+    /**
+     * Handles a message from a peer. Called on the thread reading from the peer,
+     * so anything touching the text is passed on to the merge thread.
+     */
+    public void handleMessage(Peer peer, Object message, boolean isClient) throws IOException {
+        if (message instanceof PeerChange) {
+            PeerChange peerChange = (PeerChange) message;
             if (isClient) {
-                // Server disconnected. Sort the end points; this ensures everyone
-                // connects to the same peer.
-                serverPeerEndPoints.sort((s1, s2) -> s1.compareTo(s2));
-                if (serverPeerEndPoints.size() > 0)
-                    // Connect to the first peer in the list.
-                    editor.reconnect(serverPeerEndPoints.get(0));
+                // Received updated information about a peer and we are a client. This means another peer has
+                // connected or disconnected, so update our view of other peers.
+                synchronized (endPointsLock) {
+                    if (peerChange.isConnected()) {
+                        serverPeerEndPoints.add(peerChange.getEndPoint());
+                        System.out.println("Added peer end point '" + peerChange.getEndPoint() + "'");
+                    } else {
+                        boolean removed = serverPeerEndPoints.remove(peerChange.getEndPoint());
+                        System.out.println("Removed peer '" + peerChange.getEndPoint() + "': " + removed);
+                    }
+
+                    // The peers we relay for need to know them too.
+                    if (relaying) {
+                        for (Peer otherPeer : peers) {
+                            if (otherPeer != peer)
+                                otherPeer.sendLive(peerChange);
+                        }
+                    }
+                }
             } else {
-                // A client disconnected. Remove him from peers and tell all other peers
-                // that he no longer exists.
-                synchronized (peers) {
-                    peers.remove(peer);
+                // Otherwise we assume this is the IP the peer we received the message from is listening on.
+                assert peerChange.isConnected();
+                System.out.println("Client '" + peer.getIp() + ":" + peer.getPort() + "' is listening on '" + peerChange.getEndPoint() + "'");
+                peer.setListenEndPoint(peerChange.getEndPoint());
+
+                // Send this out to all other peers. A relay keeps it to itself, as
+                // only the peers of the server may take over from it.
+                synchronized (endPointsLock) {
+                    for (Peer otherPeer : peers) {
+                        if (otherPeer != peer && !this.isClient)
+                            otherPeer.sendLive(peerChange);
+                    }
+                }
+            }
+        } else if (message instanceof RelayChange) {
+            if (isClient)
+                relayChanged((RelayChange) message);
+        } else if (message instanceof Resume) {
+            peer.resumeRequested((Resume) message);
+        } else if (message instanceof Features) {
+            System.out.println("Peer " + peer.getIndex() + " uses features " + ((Features) message).getFeatures());
+            peer.featuresAccepted(((Features) message).getFeatures());
+        } else if (message instanceof Acknowledgement) {
+            Acknowledgement acknowledgement = (Acknowledgement) message;
+            replica.runOnMergeThread(() -> {
+                if (isClient) {
+                    // Everybody has seen the events up to this watermark, so we can forget them.
+                    replica.foldStableEvents(acknowledgement.getClocks());
+                    // Including those we relay for, who can forget them too.
+                    if (relaying)
+                        replica.eventHistory.add(new Routed(acknowledgement, null, peer));
+                } else {
+                    // Only record this once the events received before it have been merged.
+                    peer.setAcknowledged(acknowledgement.getClocks());
+                }
+            });
+        } else {
+            MyTextEvent event = (MyTextEvent) message;
+            received.increment();
+            replica.runOnMergeThread(() -> {
+                if (Replica.TRACE)
+                    System.out.println("Receive: " + event);
+                // When the server is lost, peers resuming the session may all send
+                // the events the new server lacks.
+                if (seen(event, replica.getClocks())) {
+                    duplicates.increment();
+                    if (Replica.TRACE)
+                        System.out.println("Already have " + event);
+                    return;
+                }
+
+                // Our own typing happened before this event arrived.
+                replica.flush();
+                VectorClock clocksBefore = replica.getClocks();
+                TextBuffer textBefore = replica.getText().snapshot();
+
+                // Make sure later events are timestamped correctly according
+                // to this received one..
+                replica.clocksReceived(event.getClocks());
+
+                // If we're the server, or relay for it, then send this event
+                // out to all other peers
+                if (!isClient || relaying)
+                    replica.eventHistory.add(new Routed(event, null, peer));
+
+                TextChange change;
+                try {
+                    change = replica.merge(event);
+                } catch (Exception e) {
+                    System.err.println(e);
+                    // The merge may have stopped halfway, so replace the whole text.
+                    change = new TextChange(0, textBefore.length(), replica.getText().toString());
+                }
+                sendDelta(change, textBefore, clocksBefore, false);
+
+                // The clocks of an event also tell us what its source has seen.
+                if (!isClient)
+                    peer.setAcknowledged(event.getClocks());
+
+                if (Replica.TRACE)
+                    System.out.println("");
+            });
+        }
+    }
 
+    /**
+     * Called when the connection to a peer is lost.
+     */
+    public void peerDisconnected(Peer peer, boolean isClient) {
+        try {
+            peer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Metrics.remove(queueDepthMetric(peer));
+
+        if (!isClient && RESUME_WINDOW > 0) {
+            long until = System.nanoTime() + RESUME_WINDOW * 1000000L;
+            VectorClock acknowledged = peer.getAcknowledged();
+            replica.runOnMergeThread(() -> departed.put(peer.getIndex(), new Departed(acknowledged, until)));
+        }
+
+        if (isClient) {
+            // Server disconnected. If it was a relay it is among the end points, and
+            // its other peers may already have told us it is gone.
+            String lost = peer.getIp() + ":" + peer.getPort();
+            serverPeerEndPoints.remove(lost);
+            if (relaying) {
+                // Those we relay for never hear that from anyone else, so tell them
+                // now; the queued messages are dropped when we reconnect.
+                PeerChange gone = new PeerChange(false, lost);
+                synchronized (endPointsLock) {
                     for (Peer otherPeer : peers) {
                         try {
-                            otherPeer.send(new PeerChange(false, peer.getListenEndPoint()));
+                            if (otherPeer != peer)
+                                otherPeer.send(gone);
                         } catch (IOException ignored) {
                         }
                     }
                 }
             }
+            // Sort the end points; this ensures everyone connects to the same peer.
+            serverPeerEndPoints.sort((s1, s2) -> s1.compareTo(s2));
+            if (serverPeerEndPoints.size() > 0) {
+                // Connect to the first peer in the list.
+                reconnects.increment();
+                listener.reconnect(serverPeerEndPoints.get(0));
+            }
+        } else {
+            // A client disconnected. Remove him from peers and tell all other peers
+            // that he no longer exists. A relay never told them he did.
+            synchronized (endPointsLock) {
+                peers.remove(peer);
+                if (this.isClient)
+                    return;
+
+                for (Peer otherPeer : peers) {
+                    try {
+                        otherPeer.sendLive(new PeerChange(false, peer.getListenEndPoint()));
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
         }
     }
 
-    private void performEvent(MyTextEvent newEvent) {
-        // Get the events that are concurrent or happened after.
-        ArrayList<MyTextEvent> events = dec.popEvents();
+    /**
+     * Hands an edit made in the view to the merge thread.
+     *
+     * @param basis      The last delta the view had applied when the edit was made.
+     * @param generation The generation of the view, see clear.
+     */
+    public void localEdit(MyTextEvent event, int basis, int generation) {
+        replica.runOnMergeThread(() -> {
+            if (generation == mergeGeneration)
+                localEdit(event, basis);
+        });
+    }
 
-        // Roll back everything
-        for (MyTextEvent event : events) {
-            event.setAdjustOffset(0);
-        }
+    /**
+     * Merges an edit made in the view when it had applied the deltas up to
+     * basis. Called on the merge thread.
+     */
+    private void localEdit(MyTextEvent event, int basis) {
+        if (basis < replacedAt)
+            return;
 
-        StringBuilder text = new StringBuilder("");
+        mergedEdits++;
+        deltaApplied(basis);
+        if (unconfirmed.isEmpty()) {
+            // The view had everything merged so far, so the edit goes on top.
+            replica.addLocalEvent(event);
+            return;
+        }
 
-        // Add our new event
-        events.add(newEvent);
+        // The view turned down the deltas after the basis, as this edit was made
+        // in the meantime. So the edit has not seen the events merged since, and is
+        // merged like a concurrent event from a peer.
+        Delta first = unconfirmed.peekFirst();
+        TextBuffer shown = first.getTextBefore().snapshot();
+        changeOf(event).applyTo(shown);
 
-        // Create peer-local lists of events in the correct peer order.
-        OptionalInt maxIndex = events.stream().mapToInt(MyTextEvent::getSourceIndex).max();
-        ArrayList<ArrayList<MyTextEvent>> lists = new ArrayList<>();
-        for (int i = 0; i <= maxIndex.getAsInt(); i++)
-            lists.add(new ArrayList<>());
+        // Bring the view from what it shows to the merged text in one delta: take
+        // the edit back out, then do the turned down deltas and the merge of the edit.
+        ChangeTracker text = new ChangeTracker(shown.snapshot());
+        inverseOf(event).applyTo(text);
+        for (Delta delta : unconfirmed) {
+            if (delta.getChange() != null)
+                delta.getChange().applyTo(text);
+        }
 
-        for (MyTextEvent eventToRedo : events) {
-            lists.get(eventToRedo.getSourceIndex()).add(eventToRedo);
+        replica.addLateLocalEvent(event, first.getClocksBefore());
+        System.out.println("Merging late local edit: " + event);
+        TextChange merged;
+        try {
+            merged = replica.merge(event);
+        } catch (Exception e) {
+            System.err.println(e);
+            merged = new TextChange(0, text.length(), replica.getText().toString());
         }
+        if (merged != null)
+            merged.applyTo(text);
 
-        // Now merge events into text field.
-        // Keep track of index into each peer's events.
-        int[] listIndices = new int[lists.size()];
-        ArrayList<MyTextEvent> performed = new ArrayList<>();
-        while (true) {
-            // Find the earliest event of all current peer events.
-            MyTextEvent first = findEarliestEvent(lists, listIndices);
-            if (first == null)
-                break;
+        unconfirmed.clear();
+        sendDelta(text.getChange(), shown, first.getClocksBefore(), false);
+    }
 
-            // Redo this event, making sure to adjust indices for concurrent events.
-            redoEvent(text, first, performed);
-            // Merged this event.
-            listIndices[first.getSourceIndex()]++;
-        }
+    private static TextChange changeOf(MyTextEvent event) {
+        if (event instanceof TextInsertEvent)
+            return new TextChange(event.getOffset(), 0, ((TextInsertEvent) event).getText());
 
-        for (MyTextEvent event : performed)
-            dec.insertAppliedEvent(event);
+        return new TextChange(event.getOffset(), ((TextRemoveEvent) event).getLength(), "");
+    }
 
-        // Save selection
-        int selectStart = area.getSelectionStart();
-        int selectEnd = area.getSelectionEnd();
-        // Update to new merged text
-        area.setText(text.toString());
+    private static TextChange inverseOf(MyTextEvent event) {
+        if (event instanceof TextInsertEvent)
+            return new TextChange(event.getOffset(), ((TextInsertEvent) event).getText().length(), "");
 
-        // Restore selection
-        area.setCaretPosition(selectEnd + newEvent.getAdjustOffset(selectEnd));
-        area.moveCaretPosition(selectStart + newEvent.getAdjustOffset(selectStart));
+        return new TextChange(event.getOffset(), 0, ((TextRemoveEvent) event).getRemoved());
     }
 
-    private MyTextEvent findEarliestEvent(ArrayList<ArrayList<MyTextEvent>> lists, int[] listIndices) {
-        // Finds the earliest event in the current peer events.
-        MyTextEvent earliest = null;
-        for (int i = 0; i < listIndices.length; i++) {
-            if (listIndices[i] >= lists.get(i).size())
-                continue;
+    /**
+     * Sends a change of our copy of the text to the view, if any. Called on the merge thread.
+     *
+     * @return The id of the delta.
+     */
+    private int sendDelta(TextChange change, TextBuffer textBefore, VectorClock clocksBefore, boolean replacesText) {
+        if (view == null)
+            return lastDelta;
 
-            MyTextEvent event = lists.get(i).get(listIndices[i]);
-            if (earliest == null || event.happenedBefore(earliest))
-                earliest = event;
-        }
+        Delta delta = new Delta(mergeGeneration, ++lastDelta, mergedEdits, change, textBefore, clocksBefore,
+                replica.getText().snapshot(), replacesText);
+        unconfirmed.addLast(delta);
+        view.show(delta);
+        return delta.getId();
+    }
 
-        return earliest;
+    /**
+     * Tells the merge thread that the view has applied the given delta.
+     */
+    public void deltaApplied(int id, int generation) {
+        replica.runOnMergeThread(() -> {
+            if (generation == mergeGeneration)
+                deltaApplied(id);
+        });
+    }
+
+    /**
+     * Forgets the deltas up to the given one, which the view has applied.
+     * Called on the merge thread.
+     */
+    private void deltaApplied(int id) {
+        while (!unconfirmed.isEmpty() && unconfirmed.peekFirst().getId() <= id)
+            unconfirmed.removeFirst();
     }
 
-    private void redoEvent(StringBuilder text, MyTextEvent event, ArrayList<MyTextEvent> performed) {
-        boolean skip = false;
-        int adjustOffset = 0;
-        for (int j = 0; j < performed.size(); j++) {
-            MyTextEvent performedEvent = performed.get(j);
-            // If the event we have already performed happened before this new event, then we know
-            // the source of the event will already have taken it into account.
-            if (performedEvent.happenedBefore(event))
+    /**
+     * Sends a message queued on the merge thread to the peers it is for. Only
+     * queues it for each, so a slow peer does not hold up the merge thread.
+     * Called on the merge thread.
+     */
+    private void sendToPeers(Object message) {
+        if (message instanceof Join) {
+            joinSnapshotTaken(((Join) message).peer);
+            return;
+        }
+
+        // Messages passed on go to everybody but the peer they came from, and our
+        // acknowledgements as a relay only to the server.
+        Peer to = null;
+        Peer from = null;
+        if (message instanceof Routed) {
+            Routed routed = (Routed) message;
+            to = routed.to;
+            from = routed.from;
+            message = routed.message;
+        }
+
+        if (Replica.TRACE)
+            System.out.println("Sending: " + message);
+        for (Peer peer : peers) {
+            if (peer == from || (to != null && peer != to))
                 continue;
 
-            // Otherwise we need to adjust the indices. First make
-            // sure we ignore duplicate concurrent removes.
-            if (performedEvent instanceof TextRemoveEvent
-                    && event instanceof TextRemoveEvent
-                    && performedEvent.getOffset() + performedEvent.getAdjustOffset() == event.getOffset() + event.getAdjustOffset()) {
-                System.out.println("Ignoring duplicate concurrent remove: " + event);
-                skip = true;
-                break;
+            // Don't send events back to source peer
+            if (message instanceof MyTextEvent && peer.getIndex() == ((MyTextEvent) message).getSourceIndex())
+                continue;
+
+            // Only queues the message, so a slow peer does not hold up the others.
+            try {
+                peer.sendLive(message);
+                if (message instanceof MyTextEvent)
+                    sent.increment();
+            } catch (IOException ignored) {
             }
+        }
+    }
 
-            adjustOffset += performedEvent.getAdjustOffset(event.getOffset() + adjustOffset);
+    /**
+     * Serves a peer that connected to us, unless we serve as many as the fan-out
+     * allows already. Then it is sent on to one of them acting as a relay, so the
+     * peers form a tree and nobody sends every event to everybody. Only peers we
+     * read ourselves can wait for the redirect to be heard.
+     */
+    public void acceptPeer(BlockingPeer peer) {
+        if (fanOut <= 0) {
+            addPeer(peer);
+            return;
         }
 
-        if (!skip) {
-            event.setAdjustOffset(adjustOffset);
-            System.out.println("Reapply: " + event.toString());
-            event.perform(text);
-            performed.add(event);
+        CompletableFuture<String> relay = new CompletableFuture<>();
+        replica.runOnMergeThread(() -> relay.complete(chooseRelay()));
+        String endPoint = relay.join();
+        if (endPoint == null) {
+            addPeer(peer);
+            return;
         }
+
+        redirects.increment();
+        tasks.start("Redirect to " + endPoint, () -> redirect(peer, endPoint));
     }
 
-    private void sendToPeers() {
-        while (true) {
-            MyTextEvent event;
-            try {
-                event = dec.take();
-            } catch (InterruptedException e) {
-                return;
+    /**
+     * @return The end point of the relay to send a joining peer to, or null to
+     * serve it ourselves. The relay given the fewest peers is chosen, and peers
+     * that can relay are made relays as they are chosen. Called on the merge thread.
+     */
+    private String chooseRelay() {
+        int served = 0;
+        String best = null;
+        int bestCount = 0;
+        for (Peer peer : peers) {
+            if (peer == server)
+                continue;
+
+            served++;
+            String endPoint = peer.getListenEndPoint();
+            if (endPoint == null || (peer.getAcceptedFeatures() & Features.RELAY) == 0)
+                continue;
+
+            int count = relays.getOrDefault(endPoint, 0);
+            if (best == null || count < bestCount) {
+                best = endPoint;
+                bestCount = count;
             }
+        }
+
+        if (served < fanOut || best == null)
+            return null;
 
-            System.out.println("Sending: " + event);
-            synchronized (peers) {
+        if (!relays.containsKey(best)) {
+            // Keep enough indices for ourselves and the other relays.
+            int count = Math.min(RELAY_INDICES, (indexLimit - nextIndex) / (fanOut + 1));
+            if (count <= fanOut)
+                return null;
+
+            RelayChange relayChange = new RelayChange(best, nextIndex, count, fanOut);
+            nextIndex += count;
+            indexCeiling = Math.max(indexCeiling, nextIndex);
+            relayChanges.add(relayChange);
+            synchronized (endPointsLock) {
                 for (Peer peer : peers) {
-                    // Don't send back to source peer
-                    if (peer.getIndex() == event.getSourceIndex())
+                    if (peer == server)
                         continue;
 
                     try {
-                        peer.send(event);
+                        peer.sendLive(relayChange);
                     } catch (IOException ignored) {
                     }
                 }
             }
+            System.out.println("Made " + best + " a relay with indices " + relayChange.getFirstIndex()
+                    + " to " + (nextIndex - 1));
         }
+
+        relays.put(best, bestCount + 1);
+        return best;
     }
 
-    public void addPeer(Peer peer) {
-        EventQueue.invokeLater(() -> {
-            synchronized (peers) {
-                // Server always has index 0. If we have 0 peers, the new peer should have index 1,
-                // so add 1.
-                int index = peers.size() + 1;
-                peer.setIndex(index);
+    private void redirect(BlockingPeer peer, String endPoint) {
+        String[] split = endPoint.split(":");
+        try {
+            peer.send(new RedirectPeer(true, split[0], Integer.parseInt(split[1])));
 
-                try {
-                    // Tell the peer that we are the server, so no need to redirect to someone else.
-                    peer.send(new RedirectPeer(false, null, 0));
-                    // Give him his index too.
-                    peer.send(new Welcome(index));
+            // Do not close until the peer has heard us, or it may not get the redirect.
+            peer.receive();
+        } catch (IOException ex) {
+            // Peer socket closed
+        } finally {
+            try {
+                peer.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
 
-                    // Tell the new peer the IPs that the old peers are listening on so the new
-                    // peer can reconnect if I (the server) crash or is closed.
-                    for (Peer otherPeer : peers) {
-                        String listenEndPoint = otherPeer.getListenEndPoint();
-                        if (listenEndPoint != null)
-                            peer.send(new PeerChange(true, listenEndPoint));
+    /**
+     * Notes the indices the server gave a relay as taken, and starts relaying if
+     * the relay is us.
+     */
+    private void relayChanged(RelayChange relayChange) {
+        replica.runOnMergeThread(() -> {
+            indexCeiling = Math.max(indexCeiling, relayChange.getFirstIndex() + relayChange.getIndexCount());
+            if (relaying || !relayChange.getEndPoint().equals(listenEndPoint))
+                return;
+
+            nextIndex = relayChange.getFirstIndex();
+            indexLimit = nextIndex + relayChange.getIndexCount();
+            fanOut = relayChange.getFanOut();
+            relaying = true;
+            System.out.println("Relaying for the server with indices " + nextIndex + " to " + (indexLimit - 1));
+        });
+    }
+
+    /**
+     * Serves a peer, reading its messages on a task of the session.
+     */
+    public void addPeer(BlockingPeer peer) {
+        addPeer(peer, peer);
+    }
+
+    /**
+     * Serves a peer whose messages are handed to {@link #handleMessage} as they
+     * arrive, like those read by an event loop.
+     */
+    public void addEventDrivenPeer(Peer peer) {
+        addPeer(peer, null);
+    }
+
+    /**
+     * @param reader The peer to read the messages of, or null if they are handed to us.
+     */
+    private void addPeer(Peer peer, BlockingPeer reader) {
+        replica.runOnMergeThread(() -> {
+            int index = nextIndex++;
+            peer.setIndex(index);
+            replica.flush();
+
+            // Take a snapshot of the base text and the events on top of it. The rope
+            // snapshot is immediate, and the events are few as stable ones get folded.
+            TextBuffer baseText = replica.getBaseText();
+            VectorClock baseClocks = replica.getBaseClocks();
+            VectorClock clocks = replica.getClocks();
+            long session = this.session;
+            ArrayList<MyTextEvent> events = new ArrayList<>(replica.getEvents());
+            peer.setAcknowledged(baseClocks);
+
+            // Begin the join first, so no live message reaches the peer before the snapshot.
+            peer.beginJoin();
+            peers.add(peer);
+            startAcknowledging();
+            Metrics.gauge(queueDepthMetric(peer), peer::getQueueDepth);
+            peer.startWriter(tasks);
+
+            // Everything queued for sending until now is part of the snapshot, so mark the
+            // spot. From there on live messages are held back for the peer instead.
+            replica.eventHistory.add(new Join(peer));
+
+            // Stream the snapshot without holding up the UI or the other peers.
+            tasks.start("Snapshot for peer " + index,
+                    () -> sendSnapshot(peer, reader, baseText, baseClocks, clocks, session, events));
+        });
+    }
+
+    private void sendSnapshot(Peer peer, BlockingPeer reader, TextBuffer baseText, VectorClock baseClocks,
+                              VectorClock clocks, long session, ArrayList<MyTextEvent> events) {
+        try {
+            // Tell the peer that we are the server, so no need to redirect to someone else.
+            // Unless whoever accepted the connection already did.
+            int features = 0;
+            if (!peer.isGreeted()) {
+                features = peer.getFeatures() | (fanOut > 0 ? Features.RELAY : 0);
+                peer.send(new RedirectPeer(false, null, 0, features));
+            }
+
+            // Begin accepting text changes from this peer, unless its messages are handed to us.
+            if (reader != null)
+                tasks.start("Reader for peer " + peer.getIndex(), () -> acceptFromPeer(reader, false));
+
+            // Have the answer before the snapshot, so it can be compressed.
+            if (features != 0 && !peer.awaitFeatures(FEATURES_TIMEOUT))
+                System.out.println("Peer " + peer.getIndex() + " did not answer the features offered");
+
+            Resume resume = peer.getResumeRequest();
+            if (resume != null && canResume(peer, resume, session, baseClocks, clocks)) {
+                // Give him his index back, and only the events he has not seen.
+                peer.send(new Welcome(peer.getIndex(), session, isClient));
+                peer.send(new Resumed(clocks));
+                int sent = 0;
+                for (MyTextEvent event : events) {
+                    if (!seen(event, resume.getClocks())) {
+                        peer.send(event);
+                        sent++;
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
 
-                // Tell new peer how the current text field looks.
-                for (MyTextEvent event : dec.getEvents())
+                peer.endJoin();
+                resumes.increment();
+                System.out.println("Peer " + peer.getIndex() + " resumed with " + sent + " of " + events.size()
+                        + " events");
+                return;
+            }
+
+            // Give him his index too, and tell him if we only relay for the server.
+            peer.send(new Welcome(peer.getIndex(), session, isClient));
+
+            // Tell new peer how the text looks, and the events on top of that.
+            peer.send(new Snapshot(baseClocks, baseText.length()));
+            for (int offset = 0; offset < baseText.length(); offset += SNAPSHOT_CHUNK_LENGTH) {
+                int length = Math.min(SNAPSHOT_CHUNK_LENGTH, baseText.length() - offset);
+                peer.send(new SnapshotChunk(baseText.getText(offset, length)));
+            }
+
+            for (MyTextEvent event : events)
+                peer.send(event);
+
+            // Finally catch up with what happened in the meantime.
+            peer.endJoin();
+            System.out.println("Peer " + peer.getIndex() + " joined with " + baseText.length()
+                    + " characters and " + events.size() + " events");
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+
+            // The reader notices the closed socket and removes the peer.
+            try {
+                peer.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Decides whether a joining peer can resume the session where it left off,
+     * and gives it its old index back if so. It can if it was in this session,
+     * has seen everything we have folded and we have everything it has folded,
+     * as only the events after those can be exchanged.
+     */
+    private boolean canResume(Peer peer, Resume resume, long session, VectorClock baseClocks, VectorClock clocks) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        replica.runOnMergeThread(() -> {
+            int index = resume.getIndex();
+            // Its old connection may not have been noticed to be gone yet.
+            boolean inUse = index == replica.getOurIndex();
+            for (Peer otherPeer : peers)
+                inUse |= otherPeer != peer && otherPeer.getIndex() == index;
+
+            boolean resumable = resume.getSession() == session && !inUse
+                    && baseClocks.dominatedBy(resume.getClocks()) && resume.getBaseClocks().dominatedBy(clocks);
+            if (resumable) {
+                Metrics.remove(queueDepthMetric(peer));
+                peer.setIndex(index);
+                Metrics.gauge(queueDepthMetric(peer), peer::getQueueDepth);
+                // A peer another relay numbered may resume with us.
+                if (index < indexLimit)
+                    nextIndex = Math.max(nextIndex, index + 1);
+                departed.remove(index);
+            }
+
+            result.complete(resumable);
+        });
+        return result.join();
+    }
+
+    private void joinSnapshotTaken(Peer peer) {
+        synchronized (endPointsLock) {
+            peer.snapshotTaken();
+
+            // A relay tells the peers of the server instead, as those may take over from it.
+            if (isClient) {
+                for (String endPoint : serverPeerEndPoints) {
                     try {
-                        peer.send(event);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                        peer.sendLive(new PeerChange(true, endPoint));
+                    } catch (IOException ignored) {
                     }
+                }
+                return;
+            }
 
-                peers.add(peer);
+            // Tell the new peer the IPs that the old peers are listening on so the new
+            // peer can reconnect if I (the server) crash or is closed.
+            for (Peer otherPeer : peers) {
+                String listenEndPoint = otherPeer.getListenEndPoint();
+                if (otherPeer != peer && listenEndPoint != null) {
+                    try {
+                        peer.sendLive(new PeerChange(true, listenEndPoint));
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
 
-                // Finally begin accepting text changes from this peer.
-                new Thread(() -> acceptFromPeer(peer, false)).start();
+            // And which indices the relays have, should he take over.
+            for (RelayChange relayChange : relayChanges) {
+                try {
+                    peer.sendLive(relayChange);
+                } catch (IOException ignored) {
+                }
             }
-        });
+        }
     }
 
-    public void setServer(Peer server) {
+    public void setServer(BlockingPeer server) {
         // Server has index 0
         server.setIndex(0);
+        isClient = true;
+        this.server = server;
+
+        // Nothing queued before the Welcome is sent, see acceptFromPeer.
+        server.beginJoin();
+        peers.add(server);
+        startAcknowledging();
+        Metrics.gauge(queueDepthMetric(server), server::getQueueDepth);
+        server.startWriter(tasks);
 
-        synchronized (peers) {
-            peers.add(server);
+        tasks.start("Reader for server", () -> acceptFromPeer(server, true));
+    }
+
+    /**
+     * Takes over as server when the server is lost, keeping the text, the events
+     * and the clocks, so the other peers can resume the session from us. Serve
+     * the listen socket afterwards.
+     */
+    public void promote() {
+        // The lost server. The peers we relay for stay, and are served by us from now on.
+        Peer lost = server;
+        if (lost != null) {
+            Metrics.remove(queueDepthMetric(lost));
+            peers.remove(lost);
         }
+        server = null;
+        serverPeerEndPoints.clear();
+        isClient = false;
+        relaying = false;
+        relayed = false;
+        promotions.increment();
 
-        new Thread(() -> acceptFromPeer(server, true)).start();
+        replica.runOnMergeThread(() -> {
+            // The peers that will resume have indices in the clocks if they ever
+            // sent anything. Those that did not lose nothing by getting new ones.
+            VectorClock clocks = replica.getClocks();
+            nextIndex = Math.max(nextIndex, replica.getOurIndex() + 1);
+            for (int i = 0; i < clocks.size(); i++)
+                nextIndex = Math.max(nextIndex, clocks.indexAt(i) + 1);
+            // Relays may have given out indices no event carries yet.
+            nextIndex = Math.max(nextIndex, indexCeiling);
+            indexLimit = Integer.MAX_VALUE;
+
+            // The peers of the lost server have seen what it told us was stable, so
+            // keep what they may not have seen until they have had time to resume.
+            departed.put(FORMER_PEERS, new Departed(replica.getBaseClocks(),
+                    System.nanoTime() + RESUME_WINDOW * 1000000L));
+            lastAcknowledged = VectorClock.EMPTY;
+            System.out.println("Took over as server with index " + replica.getOurIndex() + ", next index "
+                    + nextIndex);
+        });
     }
 
     public void disconnect() {
-        synchronized (peers) {
-            for (Peer peer : peers) {
-                try {
-                    peer.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        stopAcknowledging();
+        if (nioServer != null) {
+            nioServer.close();
+            nioServer = null;
+        }
+
+        for (Peer peer : peers) {
+            try {
+                peer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+            Metrics.remove(queueDepthMetric(peer));
+        }
 
-            serverPeerEndPoints.clear();
-            peers.clear();
-            dec.clear();
+        serverPeerEndPoints.clear();
+        peers.clear();
+        server = null;
+        relaying = false;
+        relayed = false;
+        fanOut = Integer.getInteger(FAN_OUT_PROPERTY, 0);
+        relayChanges.clear();
+        replica.runOnMergeThread(() -> {
+            indexLimit = Integer.MAX_VALUE;
+            relays.clear();
+        });
+
+        // With the sockets closed, whatever is left only needs a nudge.
+        int live = tasks.getLiveCount();
+        if (!tasks.stop(STOP_TIMEOUT))
+            System.out.println(tasks.getLiveCount() + " of " + live + " session tasks still running");
+
+        isClient = false;
+
+        listener.setDisconnected();
+    }
+
+    /**
+     * Ends the session for good, as its document is closed: disconnects and
+     * removes the gauges of the document.
+     */
+    public void close() {
+        disconnect();
+        Metrics.remove(metricsPrefix + "history.length", historyLength);
+    }
+
+    /**
+     * Forgets the text and the events, and any deltas on their way to the view.
+     * From here on only edits of the given view generation are merged.
+     */
+    public void clear(int generation) {
+        replica.runOnMergeThread(() -> {
+            replica.clear();
+            mergeGeneration = generation;
+            mergedEdits = 0;
+            lastDelta = 0;
+            replacedAt = 0;
+            unconfirmed.clear();
+            lastAcknowledged = VectorClock.EMPTY;
+            nextIndex = 1;
+            indexCeiling = 0;
+            departed.clear();
+            session = newSession();
+        });
+    }
+
+    private void acknowledge() {
+        reportSlowPeers();
+
+        if (isClient) {
+            // Tell the server what we have seen, and the peers we relay for have,
+            // unless nothing happened since last time.
+            VectorClock clocks = seenByAll(shownClocks());
+            if (clocks.equals(lastAcknowledged))
+                return;
+
+            lastAcknowledged = clocks;
+            replica.eventHistory.add(new Routed(new Acknowledgement(lastAcknowledged), server, null));
+            return;
         }
 
-        editor.setDisconnected();
+        // We are the server, so find out what every peer has seen.
+        if (peers.isEmpty())
+            return;
+
+        VectorClock watermark = seenByAll(shownClocks());
+        int folded = replica.foldStableEvents(watermark);
+        if (folded > 0)
+            System.out.println("Forgot " + folded + " stable events, " + replica.getEvents().size() + " left");
+
+        if (!watermark.equals(lastAcknowledged)) {
+            lastAcknowledged = watermark;
+            // Queue it behind the events we have merged, so peers receive those first.
+            replica.eventHistory.add(new Acknowledgement(watermark));
+        }
     }
 
-    public void setListenEndPoint(String listenEndPoint) {
-        serverPeerEndPoints.add(listenEndPoint);
-        // Tell server the address we are listening on
-        synchronized (peers) {
-            // Should only be called for clients
-            assert peers.size() == 1;
-            for (Peer peer : peers) {
+    /**
+     * @return The clocks given, lowered to what every peer we serve has seen, and
+     * every peer that left may still resume from. Called on the merge thread.
+     */
+    private VectorClock seenByAll(VectorClock clocks) {
+        for (Peer peer : peers) {
+            // Missing entries count as 0.
+            if (peer != server)
+                clocks = clocks.min(peer.getAcknowledged());
+        }
+
+        long now = System.nanoTime();
+        departed.values().removeIf(peer -> peer.until - now < 0);
+        for (Departed peer : departed.values())
+            clocks = clocks.min(peer.acknowledged);
+
+        return clocks;
+    }
+
+    /**
+     * @return The clocks of what is sure to be in the view. Local edits may
+     * still be made concurrently with events merged after that, so those must not
+     * be acknowledged yet. Called on the merge thread.
+     */
+    private VectorClock shownClocks() {
+        return unconfirmed.isEmpty() ? replica.getClocks() : unconfirmed.peekFirst().getClocksBefore();
+    }
+
+    private String queueDepthMetric(Peer peer) {
+        return metricsPrefix + "peer." + peer.getIndex() + ".queueDepth";
+    }
+
+    private void reportSlowPeers() {
+        for (Peer peer : peers) {
+            int depth = peer.getQueueDepth();
+            if (depth >= SLOW_PEER_QUEUE_DEPTH)
+                System.out.println("Peer " + peer.getIndex() + " (" + peer.getIp() + ":" + peer.getPort()
+                        + ") is slow, " + depth + " messages queued");
+        }
+    }
+
+    /**
+     * Opens a server socket for serving peers, with a channel if the NIO
+     * transport is selected.
+     */
+    public static ServerSocket openServerSocket(InetAddress address, int port) throws IOException {
+        if (!"nio".equals(System.getProperty(TRANSPORT_PROPERTY)))
+            return new ServerSocket(port, 20, address);
+
+        if (Peer.isLegacyCodec()) {
+            System.out.println("The NIO transport needs the binary codec, using blocking sockets");
+            return new ServerSocket(port, 20, address);
+        }
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(address, port), 20);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        return channel.socket();
+    }
+
+    /**
+     * Accepts peers on the server socket until it is closed. We should be the server.
+     */
+    public void serve(ServerSocket serverSocket) throws IOException {
+        if (serverSocket.getChannel() != null) {
+            nioServer = new NioServer(serverSocket.getChannel(), new NioServer.Listener() {
+                public void connected(NioPeer peer) {
+                    addEventDrivenPeer(peer);
+                }
+
+                public void received(NioPeer peer, Object message) throws IOException {
+                    handleMessage(peer, message, false);
+                }
+
+                public void disconnected(NioPeer peer) {
+                    peerDisconnected(peer, false);
+                }
+            });
+            nioServer.start(tasks);
+            return;
+        }
+
+        tasks.start("Accept", () -> {
+            while (true) {
+                BlockingPeer peer;
                 try {
-                    peer.send(new PeerChange(true, listenEndPoint));
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    peer = new BlockingPeer(serverSocket.accept());
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    break;
                 }
+
+                acceptPeer(peer);
             }
+        });
+    }
+
+    /**
+     * Tasks of the current session, like readers, writers and accept loops.
+     */
+    public TaskGroup getTasks() {
+        return tasks;
+    }
+
+    /**
+     * @return How many messages are waiting to be written to each peer, by peer index.
+     */
+    public Map<Integer, Integer> getQueueDepths() {
+        TreeMap<Integer, Integer> depths = new TreeMap<>();
+        for (Peer peer : peers)
+            depths.put(peer.getIndex(), peer.getQueueDepth());
+
+        return depths;
+    }
+
+    public void setListenEndPoint(String listenEndPoint) {
+        synchronized (endPointsLock) {
+            this.listenEndPoint = listenEndPoint;
+            if (!relayed)
+                serverPeerEndPoints.add(listenEndPoint);
+        }
+
+        // Tell server the address we are listening on. Should only be called for clients.
+        try {
+            server.enqueue(new PeerChange(true, listenEndPoint));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Whether the server made us a relay, so peers connecting to us
+     * should be accepted rather than redirected to the server.
+     */
+    public boolean isRelaying() {
+        return relaying;
+    }
+
+    /**
+     * What a peer that left had acknowledged, until it is too late to resume.
+     */
+    private static class Departed {
+        private final VectorClock acknowledged;
+        private final long until;
+
+        Departed(VectorClock acknowledged, long until) {
+            this.acknowledged = acknowledged;
+            this.until = until;
+        }
+    }
+
+    /**
+     * A message for some of the peers only: the one it is to, if given, and not
+     * the one it came from.
+     */
+    private static class Routed {
+        private final Object message;
+        private final Peer to;
+        private final Peer from;
+
+        Routed(Object message, Peer to, Peer from) {
+            this.message = message;
+            this.to = to;
+            this.from = from;
+        }
+    }
+
+    /**
+     * Marks the spot in the outgoing queue where the snapshot for a joining peer was taken.
+     */
+    private static class Join {
+        private final Peer peer;
+
+        Join(Peer peer) {
+            this.peer = peer;
         }
     }
 }
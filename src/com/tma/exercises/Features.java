@@ -0,0 +1,30 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * Optional parts of the protocol, as bits. The server offers the ones it
+ * supports in its RedirectPeer, and a client that knows about features answers
+ * with the ones it will use too. Peers from before features never see this
+ * message, so they keep working as they did.
+ */
+public class Features implements Serializable {
+    // Large frames are deflated, see BinaryCodec.
+    public static final int COMPRESSION = 1;
+    // A client that lost its server may resume the session, see Resume.
+    public static final int RESUME = 2;
+    // One connection carries many documents, see DocumentConnection.
+    public static final int DOCUMENTS = 4;
+    // The client can relay for the server, see RelayChange.
+    public static final int RELAY = 8;
+
+    private final int features;
+
+    public Features(int features) {
+        this.features = features;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+}
@@ -0,0 +1,155 @@
+package com.tma.exercises;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A merge thread, shared by one or more replicas. Their tasks run one at a
+ * time in the order they were queued, so a server hosting many documents needs
+ * only a few of these, and documents on different workers merge in parallel.
+ * Their periodic tasks, like acknowledging, run on it too, so a document
+ * costs no thread of its own.
+ */
+public class MergeWorker {
+    /**
+     * A task run every so often on the worker, until it is cancelled.
+     */
+    public static class Periodic {
+        private final Runnable task;
+        private final long period;
+        // When it runs next, in System.nanoTime(). Only touched on the worker.
+        private long due;
+        private volatile boolean cancelled;
+
+        private Periodic(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        /**
+         * Stops running the task. A run already started finishes.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    // The replicas whose pending events this thread flushes. Only touched on it.
+    private final ArrayList<Replica> replicas = new ArrayList<>();
+    // By when they are due. Only touched on this thread.
+    private final PriorityQueue<Periodic> periodic = new PriorityQueue<>((a, b) -> Long.signum(a.due - b.due));
+
+    // The thread, so closing can stop it and wait for it.
+    private final TaskGroup thread = new TaskGroup("Worker");
+    private volatile boolean closed;
+
+    public MergeWorker(String name) {
+        thread.start(name, () -> run());
+    }
+
+    /**
+     * Stops the thread once the task it is running finishes, and waits up to
+     * the given time (ms) for that. Tasks still queued are not run.
+     *
+     * @return Whether the thread stopped.
+     */
+    public boolean close(long millis) {
+        closed = true;
+        return thread.stop(millis);
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+    }
+
+    void add(Replica replica) {
+        execute(() -> replicas.add(replica));
+    }
+
+    /**
+     * Runs a task on this thread every period (ms), starting one period from now.
+     */
+    Periodic schedule(long periodMillis, Runnable task) {
+        Periodic scheduled = new Periodic(task, TimeUnit.MILLISECONDS.toNanos(periodMillis));
+        execute(() -> {
+            scheduled.due = System.nanoTime() + scheduled.period;
+            periodic.add(scheduled);
+        });
+        return scheduled;
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                // Flush the pending events whose windows have passed, and run the
+                // periodic tasks that are due, before every task, so they happen
+                // while tasks keep coming too. Wake up for whichever is next when
+                // there are no tasks.
+                long wait = flushDue();
+                long periodicWait = runDuePeriodic();
+                if (wait < 0 || (periodicWait >= 0 && periodicWait < wait))
+                    wait = periodicWait;
+                Runnable task = wait < 0 ? tasks.take() : tasks.poll(wait, TimeUnit.NANOSECONDS);
+                if (task != null)
+                    task.run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Keep merging, an uncaught exception would end the thread.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Flushes the pending events whose windows have passed.
+     *
+     * @return How long (ns) until the next window passes, or -1 if no events are pending.
+     */
+    private long flushDue() {
+        long now = System.nanoTime();
+        long wait = -1;
+        for (Replica replica : replicas) {
+            if (!replica.hasPending())
+                continue;
+
+            long left = replica.getFlushAt() - now;
+            if (left <= 0)
+                replica.flushAndSend();
+            else if (wait < 0 || left < wait)
+                wait = left;
+        }
+        return wait;
+    }
+
+    /**
+     * Runs the periodic tasks that are due, and drops the cancelled ones.
+     *
+     * @return How long (ns) until the next one is due, or -1 if there are none.
+     */
+    private long runDuePeriodic() {
+        while (!periodic.isEmpty()) {
+            Periodic next = periodic.peek();
+            if (next.cancelled) {
+                periodic.poll();
+                continue;
+            }
+
+            long left = next.due - System.nanoTime();
+            if (left > 0)
+                return left;
+
+            periodic.poll();
+            next.due += next.period;
+            // Not again and again to catch up when the thread was held up.
+            if (next.due - System.nanoTime() <= 0)
+                next.due = System.nanoTime() + next.period;
+            periodic.add(next);
+            next.task.run();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,24 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+
+/**
+ * Turns the messages peers exchange into bytes on a connection and back.
+ */
+public interface MessageCodec {
+    void write(Object message) throws IOException;
+
+    Object read() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * @return The optional features this codec supports, see {@link Features}.
+     */
+    default int getFeatures() {
+        return 0;
+    }
+
+    default void enableFeatures(int features) {
+    }
+}
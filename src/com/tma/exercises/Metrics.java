@@ -0,0 +1,232 @@
+package com.tma.exercises;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and histograms describing how the session is doing. They are
+ * exported over JMX as com.tma.exercises:type=Metrics and, when the
+ * ddist.metricsPort property is set, as text at http://localhost:port/metrics.
+ *
+ * Updating a metric is cheap and never blocks, so it can be done on the merge
+ * thread and the network threads.
+ */
+public final class Metrics {
+    public static final String PORT_PROPERTY = "ddist.metricsPort";
+    public static final String OBJECT_NAME = "com.tma.exercises:type=Metrics";
+
+    private static final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+    private static boolean exported;
+
+    private Metrics() {
+    }
+
+    public static final class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Counts values, like durations, in buckets of powers of two, so percentiles
+     * are only known to within a factor of two.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        /**
+         * @return The upper bound of the bucket holding the given percentile.
+         */
+        public long percentile(double percentile) {
+            long rank = (long) Math.ceil(count.sum() * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+            }
+            return max.get();
+        }
+
+        private void addValues(String name, Map<String, Long> values) {
+            values.put(name + ".count", count.sum());
+            values.put(name + ".sum", sum.sum());
+            values.put(name + ".max", max.get());
+            values.put(name + ".p50", percentile(50));
+            values.put(name + ".p99", percentile(99));
+        }
+    }
+
+    public static Counter counter(String name) {
+        return (Counter) metrics.computeIfAbsent(name, key -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return (Histogram) metrics.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge, which is read whenever the metrics are. Replaces any
+     * gauge of the same name.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        metrics.put(name, value);
+    }
+
+    public static void remove(String name) {
+        metrics.remove(name);
+    }
+
+    /**
+     * Removes the gauge, unless another one has replaced it since.
+     */
+    public static void remove(String name, LongSupplier gauge) {
+        metrics.remove(name, gauge);
+    }
+
+    /**
+     * @return The current value of every metric by name, histograms split into
+     * their count, sum, max and percentiles.
+     */
+    public static Map<String, Long> values() {
+        TreeMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            Object metric = entry.getValue();
+            if (metric instanceof Counter)
+                values.put(entry.getKey(), ((Counter) metric).get());
+            else if (metric instanceof Histogram)
+                ((Histogram) metric).addValues(entry.getKey(), values);
+            else
+                values.put(entry.getKey(), ((LongSupplier) metric).getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * Registers the metrics with JMX and, if a port is configured, starts the
+     * HTTP endpoint. Called once as the process starts, and does nothing the
+     * second time.
+     */
+    public static synchronized void export() {
+        if (exported)
+            return;
+        exported = true;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics with JMX: " + e);
+        }
+
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+        if (port == null)
+            return;
+
+        try {
+            // Only reachable from this machine.
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                StringBuilder text = new StringBuilder();
+                for (Map.Entry<String, Long> value : values().entrySet())
+                    text.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Serving metrics on http://localhost:" + server.getAddress().getPort() + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Could not serve metrics on port " + port + ": " + e);
+        }
+    }
+
+    /**
+     * Shows every metric as a read-only attribute. Peers come and go, so the
+     * attributes are looked up each time.
+     */
+    private static class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = values().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute))
+                    list.add(new Attribute(attribute, values.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = values();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet())
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+
+            return new MBeanInfo(Metrics.class.getName(), "Session health", attributes, null, null, null);
+        }
+    }
+}
@@ -2,19 +2,35 @@ package com.tma.exercises;
 
 import javax.swing.*;
 import java.io.Serializable;
+import java.util.Comparator;
 
 /**
  * @author Jesper Buus Nielsen
  */
 public abstract class MyTextEvent implements Serializable {
+    /**
+     * The order events are merged in: by the sum of their clocks, which grows along
+     * happened-before, and by source index among equal sums. Every peer agrees on it,
+     * as it only depends on the events themselves.
+     */
+    public static final Comparator<MyTextEvent> MERGE_ORDER = (a, b) -> {
+        int bySum = Integer.compare(a.getClockSum(), b.getClockSum());
+        return bySum != 0 ? bySum : Integer.compare(a.sourceIndex, b.sourceIndex);
+    };
+
     MyTextEvent(int offset) {
         this.offset = offset;
     }
 
     private int offset;
     private transient int adjustOffset;
-    private int[] clocks;
+    private VectorClock clocks;
     private int sourceIndex;
+    // Computed once, as the merge compares events a lot. Events always have a clock
+    // of at least 1, so 0 means not computed yet, also after deserialization.
+    private transient int clockSum;
+    // Set when the merge found this to remove the same text as a concurrent remove.
+    private transient boolean skipped;
 
     int getOffset() {
         return offset;
@@ -28,33 +44,32 @@ public abstract class MyTextEvent implements Serializable {
         this.adjustOffset = adjustOffset;
     }
 
-    public int[] getClocks() {
+    public VectorClock getClocks() {
         return clocks;
     }
 
-    public void setClocks(int[] clocks) {
+    public void setClocks(VectorClock clocks) {
         this.clocks = clocks;
+        clockSum = 0;
+    }
+
+    public int getClockSum() {
+        if (clockSum == 0)
+            clockSum = clocks.sum();
+
+        return clockSum;
+    }
+
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(boolean skipped) {
+        this.skipped = skipped;
     }
 
     public boolean happenedBefore(MyTextEvent other) {
-        int max = Math.max(this.clocks.length, other.clocks.length);
-        // If any of ours are larger, then we did not happen before
-        for (int i = 0; i < max; i++) {
-            int ourClock = i >= this.clocks.length ? 0 : this.clocks[i];
-            int otherClock = i >= other.clocks.length ? 0 : other.clocks[i];
-            if (ourClock > otherClock)
-                return false;
-        }
-
-        // If any of ours is smaller, then we happened before
-        for (int i = 0; i < max; i++) {
-            int ourClock = i >= this.clocks.length ? 0 : this.clocks[i];
-            int otherClock = i >= other.clocks.length ? 0 : other.clocks[i];
-            if (ourClock < otherClock)
-                return true;
-        }
-
-        return false;
+        return clocks.happenedBefore(other.clocks);
     }
 
     public int getSourceIndex() {
@@ -65,22 +80,24 @@ public abstract class MyTextEvent implements Serializable {
         this.sourceIndex = sourceIndex;
     }
 
-    abstract void perform(StringBuilder text);
+    abstract void perform(TextBuffer text);
+
+    /**
+     * Reverts the effect of {@link #perform(TextBuffer)}, using the same adjusted offset.
+     */
+    abstract void undo(TextBuffer text);
+
+    /**
+     * @return Where {@link #perform(TextBuffer)} last applied the event, which is
+     * the adjusted offset kept within the text.
+     */
+    abstract int getPerformedOffset();
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("offset = " + offset + ", adj = " + adjustOffset + ", sourceIndex = " + sourceIndex);
-        sb.append(", clocks: ");
-        boolean first = true;
-        for (int clock : clocks) {
-            if (!first)
-                sb.append(", ");
-
-            sb.append(clock);
-            first = false;
-        }
-
+        sb.append(", clocks: ").append(clocks);
         return sb.toString();
     }
 
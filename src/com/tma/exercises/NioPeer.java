@@ -0,0 +1,206 @@
+package com.tma.exercises;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A peer connected through a {@link NioServer}. Sending only queues the frame;
+ * the server's event loop writes it once the channel can take it. Received
+ * messages are handed to the server's listener, so unlike a {@link BlockingPeer}
+ * it has nothing to read.
+ * The write queue is bounded like the one of {@link BlockingPeer}: send() waits for room,
+ * while enqueue() drops the peer when it is full.
+ */
+public class NioPeer extends Peer {
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final SocketChannel channel;
+    private final NioServer server;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    // Frames are encoded in the order they are queued, and decoded in the order read.
+    private final BinaryCodec codec = new BinaryCodec();
+    private volatile boolean closed;
+
+    NioPeer(SocketChannel channel, NioServer server) throws IOException {
+        this.channel = channel;
+        this.server = server;
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    protected MessageCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void send(Object obj) throws IOException {
+        synchronized (writeQueue) {
+            while (writeQueue.size() >= OUTBOUND_CAPACITY && !closed) {
+                try {
+                    writeQueue.wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting to send", e);
+                }
+            }
+
+            add(obj);
+        }
+    }
+
+    @Override
+    public void enqueue(Object obj) throws IOException {
+        synchronized (writeQueue) {
+            if (writeQueue.size() < OUTBOUND_CAPACITY) {
+                add(obj);
+                return;
+            }
+        }
+
+        System.out.println("Peer " + getIndex() + " has " + getQueueDepth() + " messages queued, dropping it");
+        close();
+        throw new IOException("Peer " + getIndex() + " is too slow");
+    }
+
+    /**
+     * Encodes a message and queues the frame. Must hold the write queue lock.
+     */
+    private void add(Object obj) throws IOException {
+        if (closed)
+            throw new IOException("Connection closed");
+
+        byte[] payload = codec.encode(obj);
+        ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+        frame.putInt(payload.length);
+        frame.put(payload);
+        frame.flip();
+
+        writeQueue.add(frame);
+        server.wantsToWrite(this);
+    }
+
+    @Override
+    public void startWriter(TaskGroup tasks) {
+        // The event loop writes
+    }
+
+    @Override
+    public int getQueueDepth() {
+        synchronized (writeQueue) {
+            return writeQueue.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        synchronized (writeQueue) {
+            writeQueue.notifyAll();
+        }
+
+        channel.close();
+        server.closed(this);
+    }
+
+    @Override
+    public String getIp() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return channel.socket().getPort();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Reads what is available and hands every complete frame to the listener.
+     * Called on the event loop.
+     */
+    void read(NioServer.Listener listener) throws IOException {
+        if (channel.read(readBuffer) < 0)
+            throw new EOFException("Connection closed by " + getIp());
+
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 0 || length > BinaryCodec.MAX_FRAME_LENGTH)
+                throw new IOException("Bad frame length " + length);
+
+            if (readBuffer.remaining() < 4 + length) {
+                // Make room for the whole frame
+                if (readBuffer.capacity() < 4 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(readBuffer);
+                    readBuffer = larger;
+                    return;
+                }
+
+                break;
+            }
+
+            readBuffer.position(readBuffer.position() + 4);
+            ByteBuffer frame = readBuffer.slice();
+            frame.limit(length);
+            readBuffer.position(readBuffer.position() + length);
+
+            listener.received(this, codec.decode(frame));
+        }
+
+        readBuffer.compact();
+    }
+
+    /**
+     * Writes as much of the queue as the channel takes. Called on the event loop.
+     */
+    void write() throws IOException {
+        synchronized (writeQueue) {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer frame = writeQueue.peek();
+                channel.write(frame);
+                if (frame.hasRemaining())
+                    break;
+
+                writeQueue.poll();
+                writeQueue.notifyAll();
+            }
+        }
+
+        updateInterest();
+    }
+
+    /**
+     * Only ask for write readiness while there is something to write, or the
+     * selector would keep waking up. Called on the event loop.
+     */
+    void updateInterest() {
+        if (key == null || !key.isValid())
+            return;
+
+        boolean writing;
+        synchronized (writeQueue) {
+            writing = !writeQueue.isEmpty();
+        }
+
+        key.interestOps(SelectionKey.OP_READ | (writing ? SelectionKey.OP_WRITE : 0));
+    }
+}
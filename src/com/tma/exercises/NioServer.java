@@ -0,0 +1,141 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves all peers from a single thread with a selector, instead of a thread
+ * per peer doing blocking reads. Accepting, reading and writing never block,
+ * and every connection has its own buffers. Messages are framed as in
+ * {@link BinaryCodec}, so clients can keep using a plain {@link BlockingPeer}.
+ */
+public class NioServer {
+    public interface Listener {
+        void connected(NioPeer peer);
+
+        void received(NioPeer peer, Object message) throws IOException;
+
+        void disconnected(NioPeer peer);
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Listener listener;
+    private final Selector selector;
+    // Other threads tell the event loop about peers through these, as only the
+    // event loop may touch the selection keys.
+    private final ConcurrentLinkedQueue<NioPeer> writers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioPeer> closed = new ConcurrentLinkedQueue<>();
+    private final ArrayList<NioPeer> peers = new ArrayList<>();
+
+    public NioServer(ServerSocketChannel serverChannel, Listener listener) throws IOException {
+        this.serverChannel = serverChannel;
+        this.listener = listener;
+        selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void start(TaskGroup tasks) {
+        tasks.start("NIO event loop", this::run);
+    }
+
+    private void run() {
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select();
+
+                NioPeer peer;
+                while ((peer = writers.poll()) != null)
+                    peer.updateInterest();
+
+                while ((peer = closed.poll()) != null) {
+                    if (peers.remove(peer))
+                        listener.disconnected(peer);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    peer = (NioPeer) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            peer.read(listener);
+
+                        if (key.isValid() && key.isWritable())
+                            peer.write();
+                    } catch (IOException e) {
+                        System.out.println("Lost peer " + peer.getIp() + ":" + peer.getPort() + ": " + e);
+                        peer.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Server socket closed
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        NioPeer peer = new NioPeer(channel, this);
+        peer.setKey(channel.register(selector, SelectionKey.OP_READ, peer));
+        peers.add(peer);
+        listener.connected(peer);
+    }
+
+    void wantsToWrite(NioPeer peer) {
+        writers.add(peer);
+        selector.wakeup();
+    }
+
+    void closed(NioPeer peer) {
+        closed.add(peer);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops accepting and closes all connections, without telling the listener.
+     */
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        try {
+            serverChannel.close();
+            for (SelectionKey key : selector.keys())
+                key.channel().close();
+
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * The original wire format: plain Java serialization. Kept so it can be
+ * compared with {@link BinaryCodec}.
+ */
+public class ObjectStreamCodec implements MessageCodec {
+    private final InputStream in;
+    private ObjectInputStream objectInputStream;
+    private final ObjectOutputStream objectOutputStream;
+
+    public ObjectStreamCodec(InputStream in, OutputStream out) throws IOException {
+        this.in = in;
+        objectOutputStream = new ObjectOutputStream(out);
+    }
+
+    @Override
+    public void write(Object message) throws IOException {
+        objectOutputStream.writeObject(message);
+        // Otherwise the stream keeps a reference to every object ever written,
+        // so it can refer back to them.
+        objectOutputStream.reset();
+        objectOutputStream.flush();
+    }
+
+    @Override
+    public Object read() throws IOException {
+        // Creating the stream reads the header, which blocks until the other end has written it.
+        if (objectInputStream == null)
+            objectInputStream = new ObjectInputStream(in);
+
+        try {
+            return objectInputStream.readObject();
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot happen");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (objectInputStream != null)
+            objectInputStream.close();
+
+        objectOutputStream.close();
+    }
+}
@@ -0,0 +1,20 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client to open a document on a connection carrying several. The
+ * server answers for the document as if the client had just connected, with a
+ * RedirectPeer, a Welcome and a snapshot, all in DocumentMessages.
+ */
+public class OpenDocument implements Serializable {
+    private final String id;
+
+    public OpenDocument(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,105 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A document opened on a DocumentConnection, standing for the server of that
+ * document, so the editor's session reads it like a peer connected to a server
+ * of that document alone. Messages go over the connection, wrapped in
+ * DocumentMessages, and the connection's reader queues the ones for this
+ * document until they are read with {@link #receive()}.
+ */
+public class OpenedDocumentPeer extends BlockingPeer implements DocumentConnection.Document {
+    // Queued to tell the reader the document was closed, or that a message was null,
+    // as the queue cannot hold null.
+    private static final Object CLOSED = new Object();
+    private static final Object NULL = new Object();
+
+    private final DocumentConnection connection;
+    private final String id;
+    private final LinkedBlockingQueue<Object> inbound = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    OpenedDocumentPeer(DocumentConnection connection, String id) throws IOException {
+        super(connection.getTransport().getSocket(), connection.getTransport().getCodec());
+        this.connection = connection;
+        this.id = id;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void received(Object message) {
+        inbound.add(message == null ? NULL : message);
+    }
+
+    @Override
+    public Object receive() throws IOException {
+        Object message;
+        try {
+            message = inbound.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reading document " + id);
+        }
+
+        if (message == CLOSED) {
+            // Any later read fails too.
+            inbound.add(CLOSED);
+            throw new IOException("Document " + id + " closed");
+        }
+        return message == NULL ? null : message;
+    }
+
+    @Override
+    public void send(Object obj) throws IOException {
+        if (closed)
+            throw new IOException("Document " + id + " closed");
+
+        connection.send(id, obj);
+    }
+
+    @Override
+    public void enqueue(Object obj) throws IOException {
+        if (closed)
+            throw new IOException("Document " + id + " closed");
+
+        connection.enqueue(id, obj);
+    }
+
+    @Override
+    public void startWriter(TaskGroup tasks) {
+        // The connection writes the messages of all its documents.
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return connection.getQueueDepth(id);
+    }
+
+    /**
+     * Closes the document only. A connection stays open while it has others.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        connection.closed(this);
+        inbound.add(CLOSED);
+    }
+
+    @Override
+    public void closedByOtherEnd() {
+        if (closed)
+            return;
+
+        closed = true;
+        inbound.add(CLOSED);
+    }
+}
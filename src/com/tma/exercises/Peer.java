@@ -1,20 +1,44 @@
 package com.tma.exercises;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-
-public class Peer {
-    private final Socket socket;
-    private ObjectInputStream objectInputStream;
-    private final ObjectOutputStream objectOutputStream;
-    private int index;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A peer of the session, as far as sending to it goes, and what the session
+ * knows about it. How its messages reach the session depends on the kind of
+ * peer: a {@link BlockingPeer} is read with receive(), while the messages of
+ * the others are handed to the session as they arrive, so they have nothing to read.
+ */
+public abstract class Peer {
+    // Set to "legacy" to talk plain Java serialization instead of the binary format.
+    // Both ends must agree.
+    public static final String CODEC_PROPERTY = "ddist.codec";
+
+    // How many messages may wait for a peer before it is considered too slow and dropped.
+    public static final int OUTBOUND_CAPACITY = Integer.getInteger("ddist.outboundCapacity", 10000);
+
+    private volatile int index;
     private String listenEndPoint;
+    private volatile VectorClock acknowledged = VectorClock.EMPTY;
+    // Counted down when the peer answers the features we offered.
+    private final CountDownLatch featuresAnswered = new CountDownLatch(1);
+    private volatile int acceptedFeatures;
+    // What the peer asked for before answering, if it is resuming a session.
+    private volatile Resume resumeRequest;
+    // Whether the peer has been told we are the server and offered features already.
+    private volatile boolean greeted;
 
-    public Peer(Socket socket) throws IOException {
-        this.socket = socket;
-        objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
+    // While a peer joins, live messages are first dropped, as the snapshot being
+    // taken for it already contains them, and then held back until the peer has
+    // received the whole snapshot.
+    private final Object joinLock = new Object();
+    private boolean waitingForSnapshot;
+    private ArrayList<Object> heldBack;
+
+    public static boolean isLegacyCodec() {
+        return "legacy".equals(System.getProperty(CODEC_PROPERTY));
     }
 
     public int getIndex() {
@@ -25,44 +49,186 @@ public class Peer {
         this.index = index;
     }
 
-    public Object receive() throws IOException {
-        if (objectInputStream == null)
-            objectInputStream = new ObjectInputStream(socket.getInputStream());
+    /**
+     * @return The codec of the connection, whose features are negotiated.
+     */
+    protected abstract MessageCodec getCodec();
 
-        try {
-            return objectInputStream.readObject();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Cannot happen");
-        }
+    /**
+     * @return The features we can use on this connection, see {@link Features}.
+     */
+    public int getFeatures() {
+        return getCodec().getFeatures();
     }
 
-    public void send(Object obj) throws IOException {
-        synchronized (objectOutputStream) {
-            objectOutputStream.writeObject(obj);
-        }
+    /**
+     * Answers the features the server offered with the ones we use too, and
+     * starts using them. Called by a client once it is not redirected.
+     *
+     * @param resume Where to resume the session from, or null to join anew.
+     *               Only sent if the server can resume sessions.
+     */
+    public void acceptFeatures(int offered, Resume resume) throws IOException {
+        acceptFeatures(offered, resume, 0);
+    }
+
+    /**
+     * @param extra Features we use on top of those of the connection, like
+     *              {@link Features#DOCUMENTS}.
+     */
+    public void acceptFeatures(int offered, Resume resume, int extra) throws IOException {
+        if (offered == 0)
+            return;
+
+        int features = offered & (getFeatures() | extra);
+        if (resume != null && (features & Features.RESUME) != 0)
+            send(resume);
+
+        send(new Features(features));
+        getCodec().enableFeatures(features);
+    }
+
+    /**
+     * Called on the server when the peer asks to resume a session, just before
+     * it answers the features offered.
+     */
+    public void resumeRequested(Resume resume) {
+        resumeRequest = resume;
+    }
+
+    /**
+     * @return What the peer asked to resume from, or null if it joins anew.
+     */
+    public Resume getResumeRequest() {
+        return resumeRequest;
+    }
+
+    /**
+     * Called on the server when whoever accepted the connection has already sent
+     * the RedirectPeer and read the answer, so the session does not again.
+     */
+    public void setGreeted() {
+        greeted = true;
+    }
+
+    public boolean isGreeted() {
+        return greeted;
+    }
+
+    /**
+     * Called on the server when the peer answers the features we offered.
+     */
+    public void featuresAccepted(int features) {
+        acceptedFeatures = features;
+        getCodec().enableFeatures(features & getFeatures());
+        featuresAnswered.countDown();
+    }
+
+    /**
+     * @return The features the peer answered it uses, 0 until it does.
+     */
+    public int getAcceptedFeatures() {
+        return acceptedFeatures;
     }
 
-    public void close() throws IOException {
-        if (objectInputStream != null)
-            objectInputStream.close();
+    /**
+     * Waits for the peer to answer the features we offered. Peers from before
+     * features never do, so only wait so long.
+     *
+     * @return Whether the peer answered.
+     */
+    public boolean awaitFeatures(long timeoutMillis) throws InterruptedException {
+        return featuresAnswered.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes a message right away, blocking until it has been written.
+     */
+    public abstract void send(Object obj) throws IOException;
+
+    /**
+     * Queues a message for the writer and returns right away. If the queue is
+     * full the peer is not keeping up, so it is closed.
+     */
+    public abstract void enqueue(Object obj) throws IOException;
+
+    /**
+     * Starts writing queued messages to the peer, until it is closed.
+     */
+    public abstract void startWriter(TaskGroup tasks);
+
+    /**
+     * @return How many messages are waiting to be written to this peer.
+     */
+    public abstract int getQueueDepth();
+
+    /**
+     * Sends a message that is part of the live session, unless the peer is still joining.
+     */
+    public void sendLive(Object obj) throws IOException {
+        synchronized (joinLock) {
+            if (waitingForSnapshot)
+                return;
 
-        objectOutputStream.close();
-        socket.close();
+            if (heldBack != null) {
+                heldBack.add(obj);
+                return;
+            }
+        }
+
+        enqueue(obj);
     }
 
-    public Socket getSocket() {
-        return socket;
+    public void beginJoin() {
+        synchronized (joinLock) {
+            waitingForSnapshot = true;
+            heldBack = new ArrayList<>();
+        }
     }
 
-    public String getIp() {
-        return socket.getInetAddress().getHostAddress();
+    /**
+     * Called once all live messages the snapshot contains have been passed by.
+     */
+    public void snapshotTaken() {
+        synchronized (joinLock) {
+            waitingForSnapshot = false;
+            joinLock.notifyAll();
+        }
     }
 
-    public int getPort() {
-        return socket.getPort();
+    /**
+     * Sends the live messages held back while the snapshot was sent. After this,
+     * live messages are sent right away.
+     */
+    public void endJoin() throws IOException, InterruptedException {
+        synchronized (joinLock) {
+            while (waitingForSnapshot)
+                joinLock.wait();
+        }
+
+        while (true) {
+            ArrayList<Object> messages;
+            synchronized (joinLock) {
+                if (heldBack.isEmpty()) {
+                    heldBack = null;
+                    return;
+                }
+
+                messages = heldBack;
+                heldBack = new ArrayList<>();
+            }
+
+            for (Object message : messages)
+                enqueue(message);
+        }
     }
 
+    public abstract void close() throws IOException;
+
+    public abstract String getIp();
+
+    public abstract int getPort();
+
     public String getListenEndPoint() {
         return listenEndPoint;
     }
@@ -70,4 +236,15 @@ public class Peer {
     public void setListenEndPoint(String listenEndPoint) {
         this.listenEndPoint = listenEndPoint;
     }
+
+    /**
+     * @return The clocks of the latest events this peer has told us it has seen.
+     */
+    public VectorClock getAcknowledged() {
+        return acknowledged;
+    }
+
+    public void setAcknowledged(VectorClock acknowledged) {
+        this.acknowledged = acknowledged;
+    }
 }
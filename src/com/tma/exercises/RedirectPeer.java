@@ -6,15 +6,25 @@ import java.io.Serializable;
  * Created by Jonas le Fevre on 24-05-2016.
  */
 public class RedirectPeer implements Serializable {
+    // The one computed before features were added, so both versions still read each other.
+    private static final long serialVersionUID = -7121812169247404029L;
+
     private boolean redirect;
     private String ipAddress;
     private int port;
+    // The features the server offers, see Features.
+    private int features;
 
 
     public RedirectPeer(boolean shouldRedirect, String target, int port) {
+        this(shouldRedirect, target, port, 0);
+    }
+
+    public RedirectPeer(boolean shouldRedirect, String target, int port, int features) {
         this.redirect = shouldRedirect;
         this.ipAddress = target;
         this.port = port;
+        this.features = features;
     }
 
     public boolean shouldRedirect() {
@@ -29,4 +39,8 @@ public class RedirectPeer implements Serializable {
     public int getPort() {
         return port;
     }
+
+    public int getFeatures() {
+        return features;
+    }
 }
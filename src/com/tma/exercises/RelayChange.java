@@ -0,0 +1,39 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a server to all its peers when it makes the one listening on the
+ * end point a relay. The relay serves peers of its own, up to the fan-out,
+ * numbering them from the indices given, and passes events between them and
+ * the server. The others note the indices as taken, should they take over.
+ */
+public class RelayChange implements Serializable {
+    private final String endPoint;
+    private final int firstIndex;
+    private final int indexCount;
+    private final int fanOut;
+
+    public RelayChange(String endPoint, int firstIndex, int indexCount, int fanOut) {
+        this.endPoint = endPoint;
+        this.firstIndex = firstIndex;
+        this.indexCount = indexCount;
+        this.fanOut = fanOut;
+    }
+
+    public String getEndPoint() {
+        return endPoint;
+    }
+
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+}
@@ -0,0 +1,429 @@
+package com.tma.exercises;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Our copy of the document: the clocks, the events and the text. It belongs
+ * to the merge thread, which is the only one changing it, so anything else
+ * queues its work to that thread. Replicas may share a merge thread.
+ */
+public class Replica {
+    private final Metrics.Histogram mergeMicros;
+    private final Metrics.Histogram mergeReplayed;
+    private final MergeWorker worker;
+    // Whether the worker was started for this replica alone, so closing it stops the worker.
+    private final boolean ownsWorker;
+    private VectorClock clocks = VectorClock.EMPTY;
+    private final EventHistory events = new EventHistory();
+    // Events everybody has seen are folded into this base text and dropped from
+    // events, so the text is always the base with the events performed on top.
+    private TextBuffer baseText = new Rope();
+    // Our copy of the document, kept up to date with local and merged events.
+    private TextBuffer text = new Rope();
+    private VectorClock baseClocks = VectorClock.EMPTY;
+    private int ourIndex;
+    // Typing is coalesced: contiguous inserts, or contiguous backspaces or deletes,
+    // are merged into this event, which is sent once the edit stops being
+    // contiguous or the window has passed. The window starts with the first edit
+    // coalesced, so steady typing still goes out every window. Our copy of the
+    // text is updated right away.
+    public static final String COALESCE_WINDOW_PROPERTY = "ddist.coalesceWindow";
+    private final int coalesceWindow = Integer.getInteger(COALESCE_WINDOW_PROPERTY, 50);
+    private MyTextEvent pending;
+    // When the merge thread flushes the pending event, in System.nanoTime().
+    private long flushAt;
+    // Where the events going into the history are logged, if anywhere.
+    private EventLog log;
+    // Tracing every event merged costs more than merging it, so it is off unless
+    // asked for. Sessions trace the events they receive and send with it too.
+    public static final String TRACE_PROPERTY = "ddist.traceMerges";
+    static final boolean TRACE = Boolean.getBoolean(TRACE_PROPERTY);
+    // Gets the messages for the peers on the merge thread, if anything does.
+    private Consumer<Object> sender;
+
+    /**
+     * Makes a replica with a merge thread of its own, stopped by {@link #close(long)}.
+     */
+    public Replica() {
+        this(new MergeWorker("Merge"), "", true);
+    }
+
+    public Replica(MergeWorker worker) {
+        this(worker, "");
+    }
+
+    /**
+     * Makes a replica merging on the given worker, alongside its other replicas.
+     * Whoever made the worker closes it.
+     *
+     * @param metricsPrefix Put in front of the names of its metrics, like its session does.
+     */
+    public Replica(MergeWorker worker, String metricsPrefix) {
+        this(worker, metricsPrefix, false);
+    }
+
+    private Replica(MergeWorker worker, String metricsPrefix, boolean ownsWorker) {
+        this.worker = worker;
+        this.ownsWorker = ownsWorker;
+        mergeMicros = Metrics.histogram(metricsPrefix + "merge.micros");
+        mergeReplayed = Metrics.histogram(metricsPrefix + "merge.replayed");
+        worker.add(this);
+    }
+
+    /**
+     * Stops the merge thread, if the replica has one of its own, once the task
+     * it is running finishes. Waits up to the given time (ms) for that.
+     *
+     * @return Whether the thread stopped.
+     */
+    public boolean close(long millis) {
+        return !ownsWorker || worker.close(millis);
+    }
+
+    /**
+     * Queues a task for the merge thread. Tasks run one at a time in the order
+     * they were queued, and what a task queues for the peers is sent after it.
+     */
+    public void runOnMergeThread(Runnable task) {
+        worker.execute(() -> runAndSend(task));
+    }
+
+    /**
+     * Runs a task on the merge thread every period (ms), until it is cancelled.
+     */
+    public MergeWorker.Periodic runPeriodically(long periodMillis, Runnable task) {
+        return worker.schedule(periodMillis, () -> runAndSend(task));
+    }
+
+    private void runAndSend(Runnable task) {
+        try {
+            task.run();
+        } finally {
+            sendQueued();
+        }
+    }
+
+    /**
+     * Hands the messages queued for the peers to the sender, on the merge
+     * thread after each task. Without one they stay queued, for whoever polls
+     * eventHistory instead.
+     */
+    public void setSender(Consumer<Object> sender) {
+        runOnMergeThread(() -> this.sender = sender);
+    }
+
+    private void sendQueued() {
+        if (sender == null)
+            return;
+
+        Object message;
+        while ((message = eventHistory.poll()) != null)
+            sender.accept(message);
+    }
+
+    /**
+     * Flushes the pending event and sends it. Called by the worker once the window has passed.
+     */
+    void flushAndSend() {
+        runAndSend(this::flush);
+    }
+
+    boolean hasPending() {
+        return pending != null;
+    }
+
+    long getFlushAt() {
+        return flushAt;
+    }
+
+    public int getOurIndex() {
+        return ourIndex;
+    }
+
+    public void setOurIndex(int ourIndex) {
+        this.ourIndex = ourIndex;
+        this.clocks = VectorClock.EMPTY;
+    }
+
+    // The messages for the peers, in the order they are to be sent. Only touched
+    // on the merge thread, which hands them to the sender after each task, so
+    // sending needs no thread of its own.
+    //
+    // Besides events the queue also carries acknowledgements, so they reach peers
+    // in order with the events they acknowledge.
+    protected final ArrayDeque<Object> eventHistory = new ArrayDeque<>();
+
+    /**
+     * Performs a local event made on top of everything merged so far, and queues
+     * it for sending. Called on the merge thread.
+     */
+    public void addLocalEvent(MyTextEvent e) {
+        e.perform(text);
+
+        MyTextEvent coalesced = pending == null ? null : coalesce(pending, e);
+        if (coalesced != null) {
+            pending = coalesced;
+            return;
+        }
+
+        flush();
+        pending = e;
+        if (coalesceWindow > 0)
+            flushAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(coalesceWindow);
+        else
+            flush();
+    }
+
+    /**
+     * Timestamps a local event which was made before the events merged since
+     * seen arrived in the text area, so it is concurrent with those, and queues
+     * it for sending. The event is not performed, it has to be merged.
+     */
+    public void addLateLocalEvent(MyTextEvent e, VectorClock seen) {
+        flush();
+
+        e.setSourceIndex(ourIndex);
+        incrementOurClock();
+        e.setClocks(seen.with(ourIndex, clocks.get(ourIndex)));
+        eventHistory.add(e);
+    }
+
+    /**
+     * @return One event doing what first and then second does, or null if they
+     * are not contiguous.
+     */
+    private static MyTextEvent coalesce(MyTextEvent first, MyTextEvent second) {
+        if (first instanceof TextInsertEvent && second instanceof TextInsertEvent) {
+            TextInsertEvent insert = (TextInsertEvent) first;
+            TextInsertEvent next = (TextInsertEvent) second;
+            // Typing on at the end of what was just typed
+            if (next.getOffset() == insert.getOffset() + insert.getText().length())
+                return new TextInsertEvent(insert.getOffset(), insert.getText() + next.getText());
+        } else if (first instanceof TextRemoveEvent && second instanceof TextRemoveEvent) {
+            TextRemoveEvent remove = (TextRemoveEvent) first;
+            TextRemoveEvent next = (TextRemoveEvent) second;
+            // Backspace
+            if (next.getOffset() + next.getLength() == remove.getOffset())
+                return new TextRemoveEvent(next.getOffset(), next.getRemoved() + remove.getRemoved());
+            // Delete
+            if (next.getOffset() == remove.getOffset())
+                return new TextRemoveEvent(remove.getOffset(), remove.getRemoved() + next.getRemoved());
+        }
+
+        return null;
+    }
+
+    /**
+     * Timestamps the coalesced event, if any, and queues it for sending. Must be
+     * called before anything else is merged into the text, as the event has
+     * already been performed on it.
+     */
+    public void flush() {
+        if (pending == null)
+            return;
+
+        MyTextEvent e = pending;
+        pending = null;
+
+        // This message comes from us!
+        e.setSourceIndex(ourIndex);
+        incrementOurClock();
+        e.setClocks(clocks);
+        eventHistory.add(e);
+        events.add(e);
+        if (log != null)
+            log.append(e);
+    }
+
+    private void incrementOurClock() {
+        clocks = clocks.increment(ourIndex);
+    }
+
+    public void clocksReceived(VectorClock newClocks) {
+        // Take max of components
+        clocks = clocks.max(newClocks);
+
+        incrementOurClock();
+    }
+
+    /**
+     * Merges an event into our copy of the text. Called on the merge thread, or
+     * by the benchmarks and the simulator.
+     *
+     * @return What changed in the text, or null if nothing did.
+     */
+    public TextChange merge(MyTextEvent newEvent) {
+        long start = System.nanoTime();
+        EventHistory history = events;
+        if (log != null)
+            log.append(newEvent);
+
+        // History is kept in merge order, so everything ordered before the new event
+        // is a stable prefix which stays materialized in the text. Only the events
+        // after it are concurrent with the new event and need to be merged again.
+        int firstUnstable = history.size();
+        while (firstUnstable > 0 && MyTextEvent.MERGE_ORDER.compare(history.get(firstUnstable - 1), newEvent) > 0)
+            firstUnstable--;
+
+        // Remember what the merge touches, so only that has to go into the view.
+        ChangeTracker text = new ChangeTracker(this.text);
+
+        // Roll back the events ordered after the new one, newest first.
+        HashMap<Integer, ArrayDeque<MyTextEvent>> lists = new HashMap<>();
+        while (history.size() > firstUnstable) {
+            MyTextEvent event = history.removeLast();
+            if (!event.isSkipped())
+                event.undo(text);
+
+            event.setAdjustOffset(0);
+            lists.computeIfAbsent(event.getSourceIndex(), source -> new ArrayDeque<>()).addFirst(event);
+        }
+
+        // Add our new event
+        lists.computeIfAbsent(newEvent.getSourceIndex(), source -> new ArrayDeque<>()).addLast(newEvent);
+
+        // Each peer's events are in merge order already, so merge the peer-local
+        // lists with a heap of their first events.
+        PriorityQueue<ArrayDeque<MyTextEvent>> heads =
+                new PriorityQueue<>((a, b) -> MyTextEvent.MERGE_ORDER.compare(a.peekFirst(), b.peekFirst()));
+        heads.addAll(lists.values());
+        while (!heads.isEmpty()) {
+            ArrayDeque<MyTextEvent> list = heads.poll();
+
+            // Redo this event, making sure to adjust indices for concurrent events.
+            redoEvent(text, list.pollFirst(), history);
+            if (!list.isEmpty())
+                heads.add(list);
+        }
+
+        mergeReplayed.record(history.size() - firstUnstable);
+        mergeMicros.record((System.nanoTime() - start) / 1000);
+        return text.getChange();
+    }
+
+    private void redoEvent(TextBuffer text, MyTextEvent event, EventHistory performed) {
+        // Events the source had already seen when it made this event are taken into
+        // account in its offset, so only concurrent events need to be adjusted for.
+        // First make sure we ignore duplicate concurrent removes. Skipped events stay
+        // in the history, so they are merged again if an event ordered before them
+        // arrives later. Removes are indexed by where they were performed, which is
+        // kept within the text.
+        boolean skip = event instanceof TextRemoveEvent && performed.hasConcurrentRemoveAt(
+                Math.max(0, Math.min(event.getOffset() + event.getAdjustOffset(), text.length())), event);
+        int adjustOffset = 0;
+        if (skip) {
+            if (TRACE)
+                System.out.println("Ignoring duplicate concurrent remove: " + event);
+        } else {
+            for (MyTextEvent performedEvent : performed.concurrentWith(event))
+                adjustOffset += performedEvent.getAdjustOffset(event.getOffset() + adjustOffset);
+        }
+
+        event.setSkipped(skip);
+        if (!skip) {
+            event.setAdjustOffset(adjustOffset);
+            if (TRACE)
+                System.out.println("Reapply: " + event.toString());
+            event.perform(text);
+        }
+
+        performed.add(event);
+    }
+
+    /**
+     * Folds the events that are causally stable, i.e. that every peer has seen
+     * according to the watermark, into the base text and forgets about them.
+     * Only a prefix of events that happened before all remaining events can be
+     * folded, as the remaining events may still need to be merged against them.
+     *
+     * @return The number of events folded.
+     */
+    public int foldStableEvents(VectorClock watermark) {
+        int fold = 0;
+        while (fold < events.size() && events.get(fold).getClocks().dominatedBy(watermark))
+            fold++;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < fold && !changed; i++) {
+                MyTextEvent stable = events.get(i);
+                for (int j = fold; j < events.size(); j++) {
+                    if (!stable.happenedBefore(events.get(j))) {
+                        fold = i;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < fold; i++) {
+            MyTextEvent event = events.get(i);
+            if (!event.isSkipped())
+                event.perform(baseText);
+            baseClocks = baseClocks.max(event.getClocks());
+        }
+
+        events.removeFirst(fold);
+        if (fold > 0 && log != null)
+            log.folded(baseText, baseClocks);
+        return fold;
+    }
+
+    public void setBase(TextBuffer text, VectorClock clocks) {
+        pending = null;
+        events.clear();
+        baseText = text.snapshot();
+        this.text = text.snapshot();
+        baseClocks = clocks;
+        this.clocks = this.clocks.max(clocks);
+        if (log != null)
+            log.checkpoint(baseText, baseClocks);
+    }
+
+    /**
+     * Logs the events going into the history from here on, and checkpoints the
+     * base text into the log as it grows.
+     */
+    public void setLog(EventLog log) {
+        this.log = log;
+    }
+
+    public TextBuffer getBaseText() {
+        return baseText.snapshot();
+    }
+
+    /**
+     * @return The current text, i.e. the base text with all events performed on top.
+     */
+    public TextBuffer getText() {
+        return text;
+    }
+
+    public VectorClock getBaseClocks() {
+        return baseClocks;
+    }
+
+    public void clear() {
+        pending = null;
+        events.clear();
+        baseText = new Rope();
+        text = new Rope();
+        baseClocks = VectorClock.EMPTY;
+        eventHistory.clear();
+        clocks = VectorClock.EMPTY;
+    }
+
+    public VectorClock getClocks() {
+        return clocks;
+    }
+
+    public EventHistory getEvents() {
+        return events;
+    }
+}
@@ -0,0 +1,40 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * Sent by a client that lost its server, before it answers the features the
+ * new server offered. Tells the server which session it was in, its index and
+ * what it has seen, so the server can send only the events it lacks. The
+ * client can only send back events it has not folded, so the server must have
+ * its base.
+ */
+public class Resume implements Serializable {
+    private final long session;
+    private final int index;
+    private final VectorClock clocks;
+    private final VectorClock baseClocks;
+
+    public Resume(long session, int index, VectorClock clocks, VectorClock baseClocks) {
+        this.session = session;
+        this.index = index;
+        this.clocks = clocks;
+        this.baseClocks = baseClocks;
+    }
+
+    public long getSession() {
+        return session;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public VectorClock getClocks() {
+        return clocks;
+    }
+
+    public VectorClock getBaseClocks() {
+        return baseClocks;
+    }
+}
@@ -0,0 +1,20 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * Sent by the server after the Welcome instead of a snapshot, when a client
+ * may resume. The events the client lacks follow, and the client sends back
+ * the events the server lacks, going by these clocks.
+ */
+public class Resumed implements Serializable {
+    private final VectorClock clocks;
+
+    public Resumed(VectorClock clocks) {
+        this.clocks = clocks;
+    }
+
+    public VectorClock getClocks() {
+        return clocks;
+    }
+}
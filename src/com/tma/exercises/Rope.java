@@ -0,0 +1,202 @@
+package com.tma.exercises;
+
+/**
+ * A text buffer stored as a balanced tree of string pieces. Nodes are never
+ * changed once created, so an edit only creates the O(log n) nodes on the path
+ * to the change and a snapshot is just another reference to the root.
+ */
+public class Rope implements TextBuffer {
+    // Adjacent pieces are merged while they fit in a leaf of this size, so
+    // typing does not end up as one leaf per character.
+    private static final int MAX_LEAF_LENGTH = 512;
+    private static final Node EMPTY = new Node("");
+
+    private Node root;
+
+    public Rope() {
+        root = EMPTY;
+    }
+
+    public Rope(String text) {
+        root = build(text, 0, text.length());
+    }
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    @Override
+    public int length() {
+        return root.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= root.length)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + root.length);
+
+        Node node = root;
+        while (node.text == null) {
+            if (index < node.left.length) {
+                node = node.left;
+            } else {
+                index -= node.left.length;
+                node = node.right;
+            }
+        }
+
+        return node.text.charAt(index);
+    }
+
+    @Override
+    public String getText(int offset, int length) {
+        checkRange(offset, length);
+        StringBuilder sb = new StringBuilder(length);
+        append(root, sb, offset, offset + length);
+        return sb.toString();
+    }
+
+    @Override
+    public void insert(int offset, String text) {
+        checkRange(offset, 0);
+        if (text.isEmpty())
+            return;
+
+        Node[] split = split(root, offset);
+        root = concat(concat(split[0], build(text, 0, text.length())), split[1]);
+    }
+
+    @Override
+    public void remove(int offset, int length) {
+        checkRange(offset, length);
+        Node[] tail = split(root, offset + length);
+        Node[] head = split(tail[0], offset);
+        root = concat(head[0], tail[1]);
+    }
+
+    @Override
+    public TextBuffer snapshot() {
+        return new Rope(root);
+    }
+
+    @Override
+    public String toString() {
+        return getText(0, root.length);
+    }
+
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > root.length)
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", text length " + root.length);
+    }
+
+    private static Node build(String text, int start, int end) {
+        if (end - start <= MAX_LEAF_LENGTH)
+            return start == end ? EMPTY : new Node(text.substring(start, end));
+
+        int middle = start + (end - start) / 2;
+        return new Node(build(text, start, middle), build(text, middle, end));
+    }
+
+    private static void append(Node node, StringBuilder sb, int start, int end) {
+        if (start >= end)
+            return;
+
+        if (node.text != null) {
+            sb.append(node.text, start, end);
+            return;
+        }
+
+        int leftLength = node.left.length;
+        if (start < leftLength)
+            append(node.left, sb, start, Math.min(end, leftLength));
+        if (end > leftLength)
+            append(node.right, sb, Math.max(start - leftLength, 0), end - leftLength);
+    }
+
+    /**
+     * @return The text before offset and the text from offset on.
+     */
+    private static Node[] split(Node node, int offset) {
+        if (offset == 0)
+            return new Node[]{EMPTY, node};
+        if (offset == node.length)
+            return new Node[]{node, EMPTY};
+
+        if (node.text != null)
+            return new Node[]{new Node(node.text.substring(0, offset)), new Node(node.text.substring(offset))};
+
+        if (offset < node.left.length) {
+            Node[] split = split(node.left, offset);
+            return new Node[]{split[0], concat(split[1], node.right)};
+        }
+
+        if (offset > node.left.length) {
+            Node[] split = split(node.right, offset - node.left.length);
+            return new Node[]{concat(node.left, split[0]), split[1]};
+        }
+
+        return new Node[]{node.left, node.right};
+    }
+
+    private static Node concat(Node left, Node right) {
+        if (left.length == 0)
+            return right;
+        if (right.length == 0)
+            return left;
+
+        if (left.text != null && right.text != null && left.length + right.length <= MAX_LEAF_LENGTH)
+            return new Node(left.text + right.text);
+
+        // Descend into the taller tree until the heights match, then
+        // rebalance on the way back up like an AVL tree.
+        if (left.height > right.height + 1)
+            return balance(left.left, concat(left.right, right));
+        if (right.height > left.height + 1)
+            return balance(concat(left, right.left), right.right);
+
+        return new Node(left, right);
+    }
+
+    private static Node balance(Node left, Node right) {
+        if (left.height > right.height + 1) {
+            if (left.left.height >= left.right.height)
+                return new Node(left.left, new Node(left.right, right));
+
+            return new Node(new Node(left.left, left.right.left), new Node(left.right.right, right));
+        }
+
+        if (right.height > left.height + 1) {
+            if (right.right.height >= right.left.height)
+                return new Node(new Node(left, right.left), right.right);
+
+            return new Node(new Node(left, right.left.left), new Node(right.left.right, right.right));
+        }
+
+        return new Node(left, right);
+    }
+
+    private static final class Node {
+        // Only leaves have text, only branches have children.
+        final String text;
+        final Node left;
+        final Node right;
+        final int length;
+        final int height;
+
+        Node(String text) {
+            this.text = text;
+            this.left = null;
+            this.right = null;
+            this.length = text.length();
+            this.height = 0;
+        }
+
+        Node(Node left, Node right) {
+            this.text = null;
+            this.left = left;
+            this.right = right;
+            this.length = left.length + right.length;
+            this.height = Math.max(left.height, right.height) + 1;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Hosts a session without a user interface, so it runs on a machine without a
+ * display. Editors connect to it like to any other server.
+ *
+ * Usage: SessionServer port [file]
+ *
+ * With -Dddist.logDirectory=dir the session is logged to the directory, and
+ * a server started on a directory holding a log picks up where it left off,
+ * rather than loading the file.
+ *
+ * With -Dddist.documents=dir the server hosts a document for every file in the
+ * directory, and new ones as editors open them, see DocumentServer. The file
+ * given is the default document, and each other document is logged to its own
+ * directory under documents in the log directory.
+ */
+public class SessionServer {
+    public static final String DOCUMENTS_PROPERTY = "ddist.documents";
+    // How long (ms) stopping waits for the merge thread to finish.
+    private static final int STOP_TIMEOUT = 1000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: SessionServer port [file]");
+            System.exit(2);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        Metrics.export();
+        Path file = args.length > 1 ? Paths.get(args[1]) : null;
+        String logDirectory = System.getProperty(EventLog.DIRECTORY_PROPERTY);
+        Path logs = logDirectory == null ? null : Paths.get(logDirectory);
+        CountDownLatch stopped = new CountDownLatch(1);
+        EventReplayer.Listener listener = new EventReplayer.Listener() {
+            public void reconnect(String endPoint) {
+                // We are the server, so there is nobody to reconnect to.
+            }
+
+            public void setDisconnected() {
+                stopped.countDown();
+            }
+        };
+
+        List<EventLog> openLogs = new CopyOnWriteArrayList<>();
+        String documents = System.getProperty(DOCUMENTS_PROPERTY);
+        Runnable stop;
+        if (documents == null) {
+            Replica replica = new Replica();
+            EventReplayer engine = new EventReplayer(replica, listener);
+
+            // Server is always 0.
+            replica.runOnMergeThread(() -> replica.setOurIndex(0));
+            startSession(engine, logs, file, openLogs);
+
+            ServerSocket serverSocket = EventReplayer.openServerSocket(null, port);
+            engine.serve(serverSocket);
+            System.out.println("Listening on port " + serverSocket.getLocalPort());
+            stop = () -> {
+                try {
+                    serverSocket.close();
+                } catch (IOException ignored) {
+                }
+                engine.close();
+                replica.close(STOP_TIMEOUT);
+            };
+        } else {
+            Path directory = Paths.get(documents);
+            DocumentServer server = new DocumentServer((id, engine) -> {
+                if (id.equals(DocumentServer.DEFAULT_DOCUMENT)) {
+                    startSession(engine, logs, file, openLogs);
+                } else {
+                    // Documents nobody has saved yet start out empty.
+                    Path documentFile = directory.resolve(id);
+                    startSession(engine, logs == null ? null : logs.resolve("documents").resolve(id),
+                            Files.exists(documentFile) ? documentFile : null, openLogs);
+                }
+            }, listener);
+            // Have the default document, or the error loading it, right away.
+            server.open(DocumentServer.DEFAULT_DOCUMENT);
+
+            // Documents share the connection of an editor, which is read by a thread of its own.
+            ServerSocket serverSocket = new ServerSocket(port, 20);
+            server.serve(serverSocket);
+            System.out.println("Hosting the documents in " + directory + " on port " + serverSocket.getLocalPort());
+            stop = () -> {
+                try {
+                    serverSocket.close();
+                } catch (IOException ignored) {
+                }
+                server.close();
+            };
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stop.run();
+            for (EventLog log : openLogs) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    System.err.println("Could not write the event log: " + e);
+                }
+            }
+        }));
+
+        // The engine runs on its own threads until we are stopped.
+        stopped.await();
+    }
+
+    /**
+     * Continues the session logged in the directory if there is one, and loads
+     * the file otherwise.
+     */
+    private static void startSession(EventReplayer engine, Path logDirectory, Path file, List<EventLog> openLogs)
+            throws IOException {
+        EventLog log = logDirectory == null ? null : new EventLog(logDirectory);
+        if (log != null) {
+            openLogs.add(log);
+            engine.recover(log);
+        }
+
+        boolean recovered = log != null
+                && (log.getRecoveredText().length() > 0 || !log.getRecoveredEvents().isEmpty());
+        if (recovered) {
+            if (file != null)
+                System.out.println("Continuing the logged session, not loading " + file);
+        } else if (file != null) {
+            engine.load(TextFiles.read(file));
+        }
+    }
+}
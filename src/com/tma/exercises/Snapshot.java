@@ -0,0 +1,25 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+/**
+ * Sent to a joining peer after the welcome. Tells how long the base text is and
+ * which events it contains. The text itself follows in {@link SnapshotChunk}s.
+ */
+public class Snapshot implements Serializable {
+    private VectorClock clocks;
+    private int length;
+
+    public Snapshot(VectorClock clocks, int length) {
+        this.clocks = clocks;
+        this.length = length;
+    }
+
+    public VectorClock getClocks() {
+        return clocks;
+    }
+
+    public int getLength() {
+        return length;
+    }
+}
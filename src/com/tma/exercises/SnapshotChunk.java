@@ -0,0 +1,15 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+
+public class SnapshotChunk implements Serializable {
+    private String text;
+
+    public SnapshotChunk(String text) {
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,147 @@
+package com.tma.exercises;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the tasks of a session, like peer readers and writers and accept loops,
+ * each on a thread of its own, and keeps track of them so they can all be
+ * cancelled when the session ends. Tasks run on virtual threads when the Java
+ * runtime has them (21 and later), as those cost next to nothing per connection,
+ * and on daemon threads otherwise. -Dddist.platformThreads=true forces the latter.
+ */
+public class TaskGroup {
+    private static final ThreadFactory VIRTUAL_FACTORY = createVirtualFactory();
+    private static final ThreadFactory FACTORY = VIRTUAL_FACTORY != null ? VIRTUAL_FACTORY : task -> {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    private final String name;
+    private final Set<Thread> live = ConcurrentHashMap.newKeySet();
+
+    public TaskGroup(String name) {
+        this.name = name;
+    }
+
+    private static ThreadFactory createVirtualFactory() {
+        if (Boolean.getBoolean("ddist.platformThreads"))
+            return null;
+
+        // Compiled for Java 8, so the virtual thread API can only be reached by reflection.
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            // Older runtime
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether tasks run on virtual threads.
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Starts a task that is not part of any group, for things living as long as the application.
+     */
+    public static Thread startDetached(String name, Runnable task) {
+        Thread thread = FACTORY.newThread(task);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+
+    public Thread start(String taskName, Runnable task) {
+        Thread thread = FACTORY.newThread(() -> {
+            try {
+                task.run();
+            } finally {
+                live.remove(Thread.currentThread());
+            }
+        });
+        thread.setName(name + ": " + taskName);
+        live.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return How many tasks have been started and not finished yet.
+     */
+    public int getLiveCount() {
+        return live.size();
+    }
+
+    /**
+     * Interrupts all running tasks, except the calling one. Tasks blocked on a
+     * socket only notice once it is closed, so close those first.
+     *
+     * @return The number of tasks interrupted.
+     */
+    public int cancel() {
+        int cancelled = 0;
+        for (Thread thread : live) {
+            if (thread == Thread.currentThread())
+                continue;
+
+            thread.interrupt();
+            cancelled++;
+        }
+
+        return cancelled;
+    }
+
+    /**
+     * Waits up to the given time for the tasks to finish, except the calling one.
+     *
+     * @return Whether all of them finished.
+     */
+    public boolean join(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Thread thread : live) {
+            if (thread == Thread.currentThread())
+                continue;
+
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+
+            thread.join(left);
+        }
+
+        for (Thread thread : live) {
+            if (thread != Thread.currentThread())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Cancels the tasks and waits up to the given time for them to finish,
+     * except the calling one.
+     *
+     * @return Whether all of them finished. False if interrupted while waiting,
+     *         with the interrupt kept for the caller.
+     */
+    public boolean stop(long millis) {
+        cancel();
+        try {
+            return join(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + live.size() + " tasks)";
+    }
+}
@@ -0,0 +1,109 @@
+package com.tma.exercises;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.awt.EventQueue;
+
+/**
+ * Shows the merged text in a JTextArea and hands the edits captured in it to
+ * the engine. Everything here happens on the EDT.
+ */
+public class TextAreaView implements TextView {
+    private final JTextArea area;
+    private final DocumentEventCapturer dec;
+    private final EventReplayer engine;
+    // How many local edits were captured and the last delta applied, in this
+    // generation. The generation changes when the text is cleared.
+    private int generation;
+    private int capturedEdits;
+    private int appliedDelta;
+
+    public TextAreaView(JTextArea area, DocumentEventCapturer dec, EventReplayer engine) {
+        this.area = area;
+        this.dec = dec;
+        this.engine = engine;
+        dec.setLocalEditListener(this::localEditCaptured);
+        engine.setView(this);
+    }
+
+    private void localEditCaptured(MyTextEvent event) {
+        capturedEdits++;
+        engine.localEdit(event, appliedDelta, generation);
+    }
+
+    @Override
+    public void show(Delta delta) {
+        EventQueue.invokeLater(() -> applyDelta(delta));
+    }
+
+    private void applyDelta(Delta delta) {
+        if (delta.getGeneration() != generation)
+            return;
+
+        if (delta.replacesText()) {
+            // The edits captured since the delta was made are dropped by the merge thread.
+            capturedEdits = delta.getMergedEdits();
+        } else if (delta.getMergedEdits() != capturedEdits) {
+            System.out.println("Delta " + delta.getId() + " is behind " + (capturedEdits - delta.getMergedEdits())
+                    + " local edits, waiting for a new one");
+            return;
+        }
+
+        appliedDelta = delta.getId();
+        if (delta.getChange() != null || delta.replacesText())
+            applyChange(delta);
+
+        engine.deltaApplied(delta.getId(), generation);
+    }
+
+    private void applyChange(Delta delta) {
+        TextChange change = delta.getChange();
+
+        // Only replace the part of the text area that changed. The caret and selection
+        // follow the edits in the document, so they stay where the user left them.
+        Document document = area.getDocument();
+        // Do not capture merged events again
+        dec.setEnabled(false);
+        try {
+            if (delta.replacesText()) {
+                area.setText(delta.getTextAfter().toString());
+                area.setCaretPosition(0);
+                return;
+            }
+
+            if (document.getLength() != delta.getTextBefore().length())
+                throw new BadLocationException("Text area is out of sync with merged text", document.getLength());
+
+            if (change.getRemovedLength() > 0)
+                document.remove(change.getOffset(), change.getRemovedLength());
+            if (!change.getInserted().isEmpty())
+                document.insertString(change.getOffset(), change.getInserted(), null);
+        } catch (BadLocationException e) {
+            System.err.println(e);
+            int caret = area.getCaretPosition();
+            area.setText(delta.getTextAfter().toString());
+            area.setCaretPosition(Math.min(caret, document.getLength()));
+        } finally {
+            dec.setEnabled(true);
+        }
+    }
+
+    /**
+     * Forgets the text and the events, and any deltas on their way to the text area.
+     * The text area itself is left alone.
+     */
+    public void clear() {
+        if (!EventQueue.isDispatchThread()) {
+            EventQueue.invokeLater(() -> clear());
+            return;
+        }
+
+        generation++;
+        capturedEdits = 0;
+        appliedDelta = 0;
+
+        // Edits captured until now are queued before this, and the rest carry the new generation.
+        engine.clear(generation);
+    }
+}
@@ -0,0 +1,21 @@
+package com.tma.exercises;
+
+/**
+ * The text of a document as seen by the events performed on it.
+ */
+public interface TextBuffer {
+    int length();
+
+    char charAt(int index);
+
+    String getText(int offset, int length);
+
+    void insert(int offset, String text);
+
+    void remove(int offset, int length);
+
+    /**
+     * @return A copy of the current text which is not affected by later changes to this buffer.
+     */
+    TextBuffer snapshot();
+}
@@ -0,0 +1,41 @@
+package com.tma.exercises;
+
+/**
+ * The net effect of a series of edits: replace removedLength characters at
+ * offset with the inserted text.
+ */
+public class TextChange {
+    private final int offset;
+    private final int removedLength;
+    private final String inserted;
+
+    public TextChange(int offset, int removedLength, String inserted) {
+        this.offset = offset;
+        this.removedLength = removedLength;
+        this.inserted = inserted;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getRemovedLength() {
+        return removedLength;
+    }
+
+    public String getInserted() {
+        return inserted;
+    }
+
+    public void applyTo(TextBuffer text) {
+        if (removedLength > 0)
+            text.remove(offset, removedLength);
+        if (!inserted.isEmpty())
+            text.insert(offset, inserted);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Replace %d at %d with '%s'", removedLength, offset, inserted);
+    }
+}
@@ -0,0 +1,128 @@
+package com.tma.exercises;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes text files a piece at a time, so a large file is never
+ * held as one string. Files are UTF-8. Line ends are read as \n and written as
+ * the platform's, like the text area does.
+ */
+public final class TextFiles {
+    private static final int CHUNK_LENGTH = 64 * 1024;
+    // How much of the file is mapped at a time.
+    private static final long MAP_SIZE = 64 * 1024 * 1024;
+
+    private TextFiles() {
+    }
+
+    public static Rope read(Path path) throws IOException {
+        Rope text = new Rope();
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(CHUNK_LENGTH);
+        // Whether the last chunk ended in a \r, which may be half of a \r\n.
+        boolean[] carriageReturn = new boolean[1];
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (true) {
+                long window = Math.min(MAP_SIZE, size - position);
+                boolean last = position + window == size;
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+                while (decoder.decode(in, chars, last).isOverflow())
+                    append(text, chars, carriageReturn);
+
+                // A character cut off at the end of the window is decoded with the next one.
+                position += in.position();
+                if (last)
+                    break;
+            }
+        }
+
+        while (decoder.flush(chars).isOverflow())
+            append(text, chars, carriageReturn);
+        append(text, chars, carriageReturn);
+        if (carriageReturn[0])
+            text.insert(text.length(), "\n");
+        return text;
+    }
+
+    private static void append(Rope text, CharBuffer chars, boolean[] carriageReturn) {
+        chars.flip();
+        StringBuilder chunk = new StringBuilder(chars.remaining());
+        while (chars.hasRemaining()) {
+            char c = chars.get();
+            if (carriageReturn[0] && c != '\n')
+                chunk.append('\n');
+            carriageReturn[0] = c == '\r';
+            if (c != '\r')
+                chunk.append(c);
+        }
+        chars.clear();
+        text.insert(text.length(), chunk.toString());
+    }
+
+    /**
+     * Writes the text next to the file and then moves it over the file, so the
+     * file is never left half written.
+     */
+    public static void write(TextBuffer text, Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temporary = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocate(4 * CHUNK_LENGTH);
+        String lineSeparator = System.lineSeparator();
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Half of a surrogate pair at the end of a chunk is encoded with the next one.
+            String left = "";
+            for (int offset = 0; offset <= text.length(); offset += CHUNK_LENGTH) {
+                int length = Math.min(CHUNK_LENGTH, text.length() - offset);
+                CharBuffer chars = CharBuffer.wrap(left + text.getText(offset, length).replace("\n", lineSeparator));
+                boolean last = offset + length == text.length();
+                CoderResult result;
+                do {
+                    result = encoder.encode(chars, bytes, last);
+                    drain(bytes, channel);
+                } while (result.isOverflow());
+                left = chars.toString();
+                if (last)
+                    break;
+            }
+
+            while (encoder.flush(bytes).isOverflow())
+                drain(bytes, channel);
+            drain(bytes, channel);
+            channel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void drain(ByteBuffer bytes, FileChannel channel) throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+        bytes.clear();
+    }
+}
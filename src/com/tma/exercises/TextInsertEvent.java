@@ -8,10 +8,13 @@ import javax.swing.*;
 public class TextInsertEvent extends MyTextEvent {
 
     private String text;
+    // Where perform inserted the text, as the adjusted offset can be outside the text.
+    private transient int performedOffset;
 
     public TextInsertEvent(int offset, String text) {
         super(offset);
         this.text = text;
+        performedOffset = offset;
     }
 
     public String getText() {
@@ -19,8 +22,19 @@ public class TextInsertEvent extends MyTextEvent {
     }
 
     @Override
-    void perform(StringBuilder text) {
-        text.insert(getOffset() + getAdjustOffset(), getText());
+    void perform(TextBuffer text) {
+        performedOffset = Math.max(0, Math.min(getOffset() + getAdjustOffset(), text.length()));
+        text.insert(performedOffset, getText());
+    }
+
+    @Override
+    void undo(TextBuffer text) {
+        text.remove(performedOffset, getText().length());
+    }
+
+    @Override
+    int getPerformedOffset() {
+        return performedOffset;
     }
 
     @Override
@@ -30,7 +44,7 @@ public class TextInsertEvent extends MyTextEvent {
 
 @Override
 public int getAdjustOffset(int offset) {
-    if (getOffset() + getAdjustOffset() <= offset)
+    if (performedOffset <= offset)
         return getText().length();
 
     return 0;
@@ -4,33 +4,73 @@ import javax.swing.*;
 
 public class TextRemoveEvent extends MyTextEvent {
 
+    // Only known at the source; the wire format just carries the length.
     private String removed;
+    private int length;
+    // What perform actually removed, which can differ from the text removed
+    // at the source once the offset has been adjusted for concurrent events.
+    private transient String performedRemoved;
+    private transient int performedOffset;
 
     public TextRemoveEvent(int offset, String text) {
         super(offset);
         removed = text;
+        length = text.length();
+        performedRemoved = text;
+        performedOffset = offset;
+    }
+
+    public TextRemoveEvent(int offset, int length) {
+        super(offset);
+        this.length = length;
+        performedOffset = offset;
+    }
+
+    /**
+     * @return The removed text, or null if the event came from another peer.
+     */
+    public String getRemoved() {
+        return removed;
     }
 
     public int getLength() {
-        return removed.length();
+        return length;
+    }
+
+    @Override
+    void perform(TextBuffer text) {
+        int start = Math.max(0, Math.min(getOffset() + getAdjustOffset(), text.length()));
+        int length = Math.min(getLength(), text.length() - start);
+        performedOffset = start;
+        performedRemoved = text.getText(start, length);
+        text.remove(start, length);
+    }
+
+    @Override
+    void undo(TextBuffer text) {
+        text.insert(performedOffset, performedRemoved);
     }
 
     @Override
-    void perform(StringBuilder text) {
-        text.replace(getOffset() + getAdjustOffset(), getOffset() + getAdjustOffset() + getLength(), "");
+    int getPerformedOffset() {
+        return performedOffset;
     }
 
     @Override
     public String toString() {
+        if (removed == null)
+            return String.format("Remove %d chars: %s", length, super.toString());
+
         return String.format("Remove '%s': %s", removed, super.toString());
     }
 
     @Override
     public int getAdjustOffset(int offset) {
         // If this delete happens before, then we need to move
-        // the other offset backwards
-        if (getOffset() + getAdjustOffset() < offset)
-            return -getLength();
+        // the other offset backwards, by what was actually removed. Until it is
+        // performed, and when it came over the wire, that is the length it has.
+        if (performedOffset < offset)
+            return -(performedRemoved != null ? performedRemoved.length() : length);
 
         return 0;
     }
@@ -0,0 +1,14 @@
+package com.tma.exercises;
+
+/**
+ * Shows the merged text to a user, like a text area. The engine hands it the
+ * changes of the text as deltas, and the view hands the engine the edits made
+ * in it, see EventReplayer.localEdit.
+ */
+public interface TextView {
+    /**
+     * Called on the merge thread, so the view has to pass the delta on to
+     * wherever it changes its text.
+     */
+    void show(Delta delta);
+}
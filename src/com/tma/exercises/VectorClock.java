@@ -0,0 +1,227 @@
+package com.tma.exercises;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An immutable vector clock that only stores the entries which are not zero,
+ * sorted by peer index. Peers that come and go leave few entries behind, and
+ * comparing or merging two clocks is a single pass over their entries. As the
+ * clocks are immutable, events and messages can share them without copying.
+ */
+public final class VectorClock implements Serializable {
+    public static final VectorClock EMPTY = new VectorClock(new int[0], new int[0]);
+
+    private final int[] indices;
+    private final int[] values;
+
+    private VectorClock(int[] indices, int[] values) {
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * @param indices Peer indices in increasing order.
+     * @param values  The clock of each peer. Zeros are left out.
+     */
+    public static VectorClock of(int[] indices, int[] values, int size) {
+        int[] keptIndices = new int[size];
+        int[] keptValues = new int[size];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && indices[i] <= indices[i - 1])
+                throw new IllegalArgumentException("Indices must be increasing");
+
+            if (values[i] < 0)
+                throw new IllegalArgumentException("Negative clock " + values[i]);
+
+            if (values[i] == 0)
+                continue;
+
+            keptIndices[kept] = indices[i];
+            keptValues[kept] = values[i];
+            kept++;
+        }
+
+        if (kept == 0)
+            return EMPTY;
+
+        return new VectorClock(Arrays.copyOf(keptIndices, kept), Arrays.copyOf(keptValues, kept));
+    }
+
+    /**
+     * @return The clock of the given peer, 0 if it has none.
+     */
+    public int get(int index) {
+        int i = Arrays.binarySearch(indices, index);
+        return i < 0 ? 0 : values[i];
+    }
+
+    /**
+     * @return This clock with the entry of the given peer one higher.
+     */
+    public VectorClock increment(int index) {
+        return with(index, get(index) + 1);
+    }
+
+    /**
+     * @return This clock with the entry of the given peer set to value.
+     */
+    public VectorClock with(int index, int value) {
+        int i = Arrays.binarySearch(indices, index);
+        if (i >= 0) {
+            int[] newValues = values.clone();
+            newValues[i] = value;
+            return of(indices, newValues, indices.length);
+        }
+
+        // Insert the new entry where it belongs
+        int at = -i - 1;
+        int[] newIndices = new int[indices.length + 1];
+        int[] newValues = new int[values.length + 1];
+        System.arraycopy(indices, 0, newIndices, 0, at);
+        System.arraycopy(values, 0, newValues, 0, at);
+        newIndices[at] = index;
+        newValues[at] = value;
+        System.arraycopy(indices, at, newIndices, at + 1, indices.length - at);
+        System.arraycopy(values, at, newValues, at + 1, values.length - at);
+        return of(newIndices, newValues, newIndices.length);
+    }
+
+    /**
+     * @return The entrywise maximum of the two clocks.
+     */
+    public VectorClock max(VectorClock other) {
+        if (other.dominatedBy(this))
+            return this;
+
+        if (this.dominatedBy(other))
+            return other;
+
+        int[] newIndices = new int[indices.length + other.indices.length];
+        int[] newValues = new int[newIndices.length];
+        int i = 0, j = 0, n = 0;
+        while (i < indices.length || j < other.indices.length) {
+            int ourIndex = i < indices.length ? indices[i] : Integer.MAX_VALUE;
+            int otherIndex = j < other.indices.length ? other.indices[j] : Integer.MAX_VALUE;
+            if (ourIndex < otherIndex) {
+                newIndices[n] = ourIndex;
+                newValues[n++] = values[i++];
+            } else if (otherIndex < ourIndex) {
+                newIndices[n] = otherIndex;
+                newValues[n++] = other.values[j++];
+            } else {
+                newIndices[n] = ourIndex;
+                newValues[n++] = Math.max(values[i++], other.values[j++]);
+            }
+        }
+
+        return new VectorClock(Arrays.copyOf(newIndices, n), Arrays.copyOf(newValues, n));
+    }
+
+    /**
+     * @return The entrywise minimum of the two clocks. Missing entries count as
+     * 0, so only peers both clocks have an entry for are kept.
+     */
+    public VectorClock min(VectorClock other) {
+        int[] newIndices = new int[Math.min(indices.length, other.indices.length)];
+        int[] newValues = new int[newIndices.length];
+        int i = 0, j = 0, n = 0;
+        while (i < indices.length && j < other.indices.length) {
+            if (indices[i] < other.indices[j]) {
+                i++;
+            } else if (other.indices[j] < indices[i]) {
+                j++;
+            } else {
+                newIndices[n] = indices[i];
+                newValues[n++] = Math.min(values[i++], other.values[j++]);
+            }
+        }
+
+        if (n == 0)
+            return EMPTY;
+
+        return new VectorClock(Arrays.copyOf(newIndices, n), Arrays.copyOf(newValues, n));
+    }
+
+    /**
+     * @return Whether no entry of this clock is larger than that of the other.
+     */
+    public boolean dominatedBy(VectorClock other) {
+        if (indices.length > other.indices.length)
+            return false;
+
+        int j = 0;
+        for (int i = 0; i < indices.length; i++) {
+            // Entries the other clock does not have are 0 there.
+            while (j < other.indices.length && other.indices[j] < indices[i])
+                j++;
+
+            if (j == other.indices.length || other.indices[j] != indices[i] || other.values[j] < values[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Whether this clock is dominated by the other and not equal to it.
+     */
+    public boolean happenedBefore(VectorClock other) {
+        return dominatedBy(other) && !equals(other);
+    }
+
+    /**
+     * @return The sum of all entries. If this clock happened before another, its
+     * sum is smaller.
+     */
+    public int sum() {
+        int sum = 0;
+        for (int value : values)
+            sum += value;
+
+        return sum;
+    }
+
+    /**
+     * @return How many peers have a clock that is not 0.
+     */
+    public int size() {
+        return indices.length;
+    }
+
+    public int indexAt(int i) {
+        return indices[i];
+    }
+
+    public int valueAt(int i) {
+        return values[i];
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof VectorClock))
+            return false;
+
+        VectorClock other = (VectorClock) obj;
+        return Arrays.equals(indices, other.indices) && Arrays.equals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(indices) + Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < indices.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+
+            sb.append(indices[i]).append(": ").append(values[i]);
+        }
+
+        return sb.append("}").toString();
+    }
+}
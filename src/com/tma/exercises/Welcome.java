@@ -3,13 +3,38 @@ package com.tma.exercises;
 import java.io.Serializable;
 
 public class Welcome implements Serializable {
+    // The one computed before the session was added, so both versions still read each other.
+    private static final long serialVersionUID = 4203142683330931131L;
+
     private int index;
+    // Identifies the session, so a client knows whether it can resume it. 0 if unknown.
+    private long session;
+    // Whether the server is a relay, see RelayChange.
+    private boolean relayed;
 
     public Welcome(int index) {
+        this(index, 0);
+    }
+
+    public Welcome(int index, long session) {
+        this(index, session, false);
+    }
+
+    public Welcome(int index, long session, boolean relayed) {
         this.index = index;
+        this.session = session;
+        this.relayed = relayed;
     }
 
     public int getIndex() {
         return index;
     }
+
+    public long getSession() {
+        return session;
+    }
+
+    public boolean isRelayed() {
+        return relayed;
+    }
 }